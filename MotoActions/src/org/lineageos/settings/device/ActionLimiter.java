@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+/**
+ * Decides whether a fired gesture may run its action, based on the sensor timestamps of the
+ * events that fired it: a minimum spacing between runs, a token bucket bounding bursts, and
+ * optionally skipping an action identical to the previous one. Gestures driving the same action
+ * share one limiter. Used from the sensor thread, apart from {@link #holdOff}.
+ */
+public class ActionLimiter {
+    private final long mDebounceNs;
+    private final int mBurst;
+    private final long mRefillNs;
+    private final boolean mDedup;
+
+    private volatile long mLastRunNs;
+    private int mTokens;
+    private long mRefillStartNs;
+    private String mLastAction;
+
+    /**
+     * @param debounceMs minimum time between two runs
+     * @param burst number of runs allowed back to back, or 0 for no rate limit
+     * @param refillMs time to earn back one run of the burst
+     * @param dedup whether to skip an action with the same label as the previous run
+     */
+    public ActionLimiter(long debounceMs, int burst, long refillMs, boolean dedup) {
+        mDebounceNs = debounceMs * 1000 * 1000;
+        mBurst = burst;
+        mRefillNs = refillMs * 1000 * 1000;
+        mDedup = dedup;
+        mTokens = burst;
+    }
+
+    public boolean tryAcquire(String action, long timestampNs) {
+        if (mDedup && action.equals(mLastAction)) {
+            return false;
+        }
+        if (timestampNs - mLastRunNs < mDebounceNs) {
+            return false;
+        }
+        if (mBurst > 0) {
+            if (mTokens == mBurst) {
+                mRefillStartNs = timestampNs;
+            } else {
+                long refills = (timestampNs - mRefillStartNs) / mRefillNs;
+                if (refills > 0) {
+                    mTokens = (int) Math.min(mBurst, mTokens + refills);
+                    mRefillStartNs += refills * mRefillNs;
+                }
+            }
+            if (mTokens == 0) {
+                return false;
+            }
+            mTokens--;
+        }
+
+        mLastRunNs = timestampNs;
+        mLastAction = action;
+        return true;
+    }
+
+    /**
+     * Note an action that ran without asking, so that the next one is debounced and
+     * deduplicated against it.
+     */
+    public void record(String action, long timestampNs) {
+        mLastRunNs = timestampNs;
+        mLastAction = action;
+    }
+
+    /**
+     * Treat timestampNs as the last run, so that nothing runs within the debounce time after it.
+     */
+    public void holdOff(long timestampNs) {
+        mLastRunNs = timestampNs;
+    }
+
+    public void reset() {
+        mLastRunNs = 0;
+        mTokens = mBurst;
+        mRefillStartNs = 0;
+        mLastAction = null;
+    }
+}
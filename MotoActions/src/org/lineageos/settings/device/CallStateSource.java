@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.content.Context;
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
+
+import java.util.concurrent.Executor;
+
+/**
+ * The part of TelephonyManager that {@link CallStateTracker} relies on. Tests ring and hang up
+ * through it, to run recorded traces against the silencing gestures.
+ */
+public interface CallStateSource {
+    /**
+     * @param callback must implement {@link TelephonyCallback.CallStateListener}
+     */
+    void registerTelephonyCallback(Executor executor, TelephonyCallback callback);
+
+    void unregisterTelephonyCallback(TelephonyCallback callback);
+
+    static CallStateSource forContext(Context context) {
+        TelephonyManager telephonyManager = context.getSystemService(TelephonyManager.class);
+        return new CallStateSource() {
+            @Override
+            public void registerTelephonyCallback(Executor executor,
+                    TelephonyCallback callback) {
+                telephonyManager.registerTelephonyCallback(executor, callback);
+            }
+
+            @Override
+            public void unregisterTelephonyCallback(TelephonyCallback callback) {
+                telephonyManager.unregisterTelephonyCallback(callback);
+            }
+        };
+    }
+}
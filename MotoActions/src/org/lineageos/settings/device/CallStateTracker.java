@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.content.Context;
+import android.os.Handler;
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single call state registration with telephony, shared by all ringing-aware actions. The
+ * callback is only registered while at least one listener is interested, and all state lives
+ * on the sensor thread.
+ */
+public class CallStateTracker {
+    private static final String TAG = "MotoActions-CallStateTracker";
+
+    public interface Listener {
+        void onRingingStarted(long ringStartedNs);
+
+        void onRingingStopped();
+    }
+
+    private final CallStateSource mCallStateSource;
+    private final Handler mHandler;
+    private final TimeSource mTimeSource;
+    private final CallStateCallback mCallback = new CallStateCallback();
+
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    private boolean mIsRinging;
+    private long mRingStartedNs;
+
+    public CallStateTracker(Context context, SensorHelper sensorHelper, TimeSource timeSource) {
+        this(CallStateSource.forContext(context), sensorHelper, timeSource);
+    }
+
+    public CallStateTracker(CallStateSource callStateSource, SensorHelper sensorHelper,
+            TimeSource timeSource) {
+        mCallStateSource = callStateSource;
+        mHandler = sensorHelper.getHandler();
+        mTimeSource = timeSource;
+    }
+
+    public void addListener(Listener listener) {
+        mHandler.post(() -> {
+            if (mListeners.contains(listener)) {
+                return;
+            }
+            mListeners.add(listener);
+            if (mListeners.size() == 1) {
+                Log.d(TAG, "Listening to call state");
+                mCallStateSource.registerTelephonyCallback(mHandler::post, mCallback);
+            } else if (mIsRinging) {
+                listener.onRingingStarted(mRingStartedNs);
+            }
+        });
+    }
+
+    public void removeListener(Listener listener) {
+        mHandler.post(() -> {
+            if (!mListeners.remove(listener)) {
+                return;
+            }
+            if (mIsRinging) {
+                listener.onRingingStopped();
+            }
+            if (mListeners.isEmpty()) {
+                Log.d(TAG, "Not listening to call state");
+                mCallStateSource.unregisterTelephonyCallback(mCallback);
+                mIsRinging = false;
+            }
+        });
+    }
+
+    private class CallStateCallback extends TelephonyCallback
+            implements TelephonyCallback.CallStateListener {
+        @Override
+        public void onCallStateChanged(int state) {
+            boolean ringing = state == TelephonyManager.CALL_STATE_RINGING;
+            if (ringing == mIsRinging) {
+                return;
+            }
+            mIsRinging = ringing;
+            if (ringing) {
+                Log.d(TAG, "Ringing started");
+                mRingStartedNs = mTimeSource.elapsedRealtimeNanos();
+                for (Listener listener : mListeners) {
+                    listener.onRingingStarted(mRingStartedNs);
+                }
+            } else {
+                Log.d(TAG, "Ringing stopped");
+                for (Listener listener : mListeners) {
+                    listener.onRingingStopped();
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,5 @@
 /*
- * Copyright (c) 2015 The CyanogenMod Project
- * Copyright (c) 2017-2022 The LineageOS Project
+ * Copyright (c) 2026 The LineageOS Project
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,10 +14,18 @@
  * limitations under the License.
  */
 
-package org.lineageos.settings.device.doze;
+package org.lineageos.settings.device;
 
-public interface ScreenStateNotifier {
-    void screenTurnedOn();
+/**
+ * Gesture components, used to key per-gesture accounting.
+ */
+public enum Gesture {
+    STOW,
+    PICK_UP,
+    CHOP_CHOP,
+    PROXIMITY_SILENCER,
+    LIFT_TO_SILENCE,
+    FLIP_TO_MUTE;
 
-    void screenTurnedOff();
+    public static final int COUNT = values().length;
 }
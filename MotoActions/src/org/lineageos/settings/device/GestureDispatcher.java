@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single point through which gesture components run their actions once a gesture fired.
+ * Actions pass the gesture's {@link ActionLimiter}, if any, and then run on a dedicated thread
+ * so that binder calls never hold up sensor event delivery.
+ */
+public class GestureDispatcher implements Handler.Callback {
+    private static final String TAG = "MotoActions-GestureDispatcher";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final Gesture[] GESTURES = Gesture.values();
+
+    /**
+     * Told about every gesture that passed its limiter, on the thread that dispatched it.
+     */
+    public interface Observer {
+        void onGestureFired(Gesture gesture, String action, long timestampNs);
+    }
+
+    private final WakeLockManager mWakeLockManager;
+    private final GestureStats mStats;
+    private final PowerAccounting mPowerAccounting;
+    private final ActionLimiter[] mLimiters = new ActionLimiter[Gesture.COUNT];
+    private final HandlerThread mActionThread;
+    private final Handler mActionHandler;
+
+    private final List<Observer> mObservers = new ArrayList<>();
+    private volatile Observer[] mDispatch = new Observer[0];
+
+    // Action thread state, for the action currently running
+    private long mRunningTimestampNs;
+    private boolean mCompletionDeferred;
+
+    public GestureDispatcher(WakeLockManager wakeLockManager, GestureStats stats,
+                             PowerAccounting powerAccounting) {
+        mWakeLockManager = wakeLockManager;
+        mStats = stats;
+        mPowerAccounting = powerAccounting;
+
+        mActionThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mActionThread.start();
+        mActionHandler = new Handler(mActionThread.getLooper(), this);
+    }
+
+    /**
+     * The looper actions run on, for work that should follow up on an action.
+     */
+    public Looper getLooper() {
+        return mActionThread.getLooper();
+    }
+
+    /**
+     * Limit how often the gesture's action may run. Pass the same limiter for gestures that
+     * drive the same action.
+     */
+    public void setLimiter(Gesture gesture, ActionLimiter limiter) {
+        mLimiters[gesture.ordinal()] = limiter;
+    }
+
+    public synchronized void addObserver(Observer observer) {
+        mObservers.add(observer);
+        mDispatch = mObservers.toArray(new Observer[0]);
+    }
+
+    public synchronized void removeObserver(Observer observer) {
+        mObservers.remove(observer);
+        mDispatch = mObservers.toArray(new Observer[0]);
+    }
+
+    /**
+     * Run the action of a gesture that fired for a sensor event stamped with timestampNs.
+     * The action is a short label such as "pulse" or "torch".
+     */
+    public void dispatch(Gesture gesture, String action, long timestampNs, Runnable runnable) {
+        dispatch(gesture, action, timestampNs, runnable, true);
+    }
+
+    /**
+     * Like {@link #dispatch}, for an action undoing an earlier one, which must never be
+     * dropped. It still counts as the gesture's last action for its limiter.
+     */
+    public void dispatchUnlimited(Gesture gesture, String action, long timestampNs,
+            Runnable runnable) {
+        dispatch(gesture, action, timestampNs, runnable, false);
+    }
+
+    private void dispatch(Gesture gesture, String action, long timestampNs, Runnable runnable,
+            boolean limited) {
+        mStats.onTriggered(gesture);
+
+        ActionLimiter limiter = mLimiters[gesture.ordinal()];
+        if (limiter != null && !limited) {
+            limiter.record(action, timestampNs);
+        } else if (limiter != null && !limiter.tryAcquire(action, timestampNs)) {
+            if (DEBUG) Log.d(TAG, "Limited " + gesture + " " + action);
+            mStats.onSuppressed(gesture);
+            return;
+        }
+
+        for (Observer observer : mDispatch) {
+            observer.onGestureFired(gesture, action, timestampNs);
+        }
+        mPowerAccounting.onAction(gesture);
+
+        // Held until the action thread ran the action. The timestamp is split over both int
+        // arguments so that posting does not allocate.
+        mWakeLockManager.acquire(gesture);
+        mActionHandler.obtainMessage(gesture.ordinal(), (int) (timestampNs >>> 32),
+                (int) timestampNs, runnable).sendToTarget();
+    }
+
+    /**
+     * For an action that completes after it returns, such as a queued broadcast: call this
+     * from the running action, then pass the returned event timestamp to {@link #complete}
+     * once done.
+     */
+    public long deferCompletion() {
+        mCompletionDeferred = true;
+        return mRunningTimestampNs;
+    }
+
+    public void complete(Gesture gesture, long timestampNs) {
+        mStats.onFired(gesture, timestampNs);
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        Gesture gesture = GESTURES[msg.what];
+        long timestampNs = ((long) msg.arg1 << 32) | (msg.arg2 & 0xffffffffL);
+        mRunningTimestampNs = timestampNs;
+        mCompletionDeferred = false;
+        try {
+            ((Runnable) msg.obj).run();
+        } finally {
+            mWakeLockManager.release(gesture);
+        }
+        if (!mCompletionDeferred) {
+            complete(gesture, timestampNs);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Delivers state changes only to the components that subscribed to them.
+ */
+public class GestureEventBus {
+    public enum Topic {
+        SCREEN_ON,
+        SCREEN_OFF,
+        DOZE_SETTING,
+        CHOP_CHOP_SETTING,
+        IR_WAKEUP_SETTING,
+        PICK_UP_SETTING,
+        POCKET_SETTING,
+        IR_SILENCER_SETTING,
+        FLIP_TO_MUTE_SETTING,
+        LIFT_TO_SILENCE_SETTING,
+    }
+
+    public interface Subscriber {
+        void onStateChanged(Topic topic);
+    }
+
+    private static final Subscriber[] EMPTY = new Subscriber[0];
+
+    private final Map<Topic, Subscriber[]> mSubscribers = new EnumMap<>(Topic.class);
+
+    public synchronized void subscribe(Subscriber subscriber, Topic... topics) {
+        for (Topic topic : topics) {
+            Subscriber[] current = mSubscribers.getOrDefault(topic, EMPTY);
+            Subscriber[] updated = new Subscriber[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = subscriber;
+            mSubscribers.put(topic, updated);
+        }
+    }
+
+    public void publish(Topic topic) {
+        Subscriber[] subscribers;
+        synchronized (this) {
+            subscribers = mSubscribers.getOrDefault(topic, EMPTY);
+        }
+        for (Subscriber subscriber : subscribers) {
+            subscriber.onStateChanged(topic);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * A gesture declared as a small state machine over boolean sensor signals. Transitions are
+ * described with a {@link Builder} and compiled into flat tables indexed by (state, signal,
+ * value), so an event costs one lookup plus a scan of the few transitions sharing that key and
+ * never allocates. Must be fed from the sensor thread.
+ */
+public class GestureRule implements SensorEventListener, SensorEventMerger.Sink {
+    private static final String TAG = "MotoActions-GestureRule";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    public interface Callback {
+        void onRuleFired(int outcome, long timestampNs);
+    }
+
+    // Signal predicates
+    public static final int ANY = 0;      // high on every event, for trigger-only sensors
+    public static final int NONZERO = 1;  // high when the first value is non-zero
+    public static final int BELOW = 2;    // high when the first value is below the threshold
+
+    public static final int NO_OUTCOME = -1;
+
+    // Signal levels are kept in an int bitmask
+    private static final int MAX_SIGNALS = 31;
+
+    private final String mName;
+    private final Callback mCallback;
+    private final PowerAccounting mPowerAccounting;
+    private final int mSignalCount;
+    private final int[] mSignalTypes;
+    private final int[] mPredicates;
+    private final float[] mThresholds;
+
+    // Candidates for a key are mFirst[key] .. mFirst[key + 1] - 1, in declaration order
+    private final int[] mFirst;
+    private final int[] mGuardMask;
+    private final int[] mGuardValue;
+    private final long[] mMinNs;
+    private final long[] mMaxNs;
+    private final int[] mTargets;
+    private final int[] mOutcomes;
+
+    private int mState;
+    private long mStateEnteredNs;
+    private int mLevels;
+
+    private GestureRule(Builder builder, Callback callback, PowerAccounting powerAccounting) {
+        mName = builder.mName;
+        mCallback = callback;
+        mPowerAccounting = powerAccounting;
+
+        mSignalCount = builder.mSignalTypes.size();
+        mSignalTypes = new int[mSignalCount];
+        mPredicates = new int[mSignalCount];
+        mThresholds = new float[mSignalCount];
+        for (int i = 0; i < mSignalCount; i++) {
+            mSignalTypes[i] = builder.mSignalTypes.get(i);
+            mPredicates[i] = builder.mPredicates.get(i);
+            mThresholds[i] = builder.mThresholds.get(i);
+        }
+
+        int count = builder.mTransitions.size();
+        mFirst = new int[builder.mStateCount * mSignalCount * 2 + 1];
+        mGuardMask = new int[count];
+        mGuardValue = new int[count];
+        mMinNs = new long[count];
+        mMaxNs = new long[count];
+        mTargets = new int[count];
+        mOutcomes = new int[count];
+
+        // Counting sort by key, stable so that earlier declarations take precedence
+        for (Transition t : builder.mTransitions) {
+            mFirst[key(t.mFrom, t.mSignal, t.mValue) + 1]++;
+        }
+        for (int i = 1; i < mFirst.length; i++) {
+            mFirst[i] += mFirst[i - 1];
+        }
+        int[] next = mFirst.clone();
+        for (Transition t : builder.mTransitions) {
+            int i = next[key(t.mFrom, t.mSignal, t.mValue)]++;
+            mGuardMask[i] = t.mGuardMask;
+            mGuardValue[i] = t.mGuardValue;
+            mMinNs[i] = t.mMinNs;
+            mMaxNs[i] = t.mMaxNs;
+            mTargets[i] = t.mTo;
+            mOutcomes[i] = t.mOutcome;
+        }
+    }
+
+    private int key(int state, int signal, boolean value) {
+        return (state * mSignalCount + signal) * 2 + (value ? 1 : 0);
+    }
+
+    /**
+     * Return to the initial state and forget all signal levels, e.g. after the sensors were
+     * unregistered.
+     */
+    public void reset() {
+        mState = 0;
+        mStateEnteredNs = 0;
+        mLevels = 0;
+    }
+
+    public boolean isHigh(int signal) {
+        return (mLevels & (1 << signal)) != 0;
+    }
+
+    /**
+     * Take the signal levels from a sensor's last known event, without taking transitions.
+     */
+    public void seed(SensorEvent event) {
+        int sensorType = event.sensor.getType();
+        for (int signal = 0; signal < mSignalCount; signal++) {
+            if (mSignalTypes[signal] == sensorType) {
+                setLevel(signal, event.values[0]);
+            }
+        }
+    }
+
+    /**
+     * Drop the level of a signal whose sensor is no longer listened to, so it can't go stale.
+     */
+    public void forget(int signal) {
+        mLevels &= ~(1 << signal);
+    }
+
+    @Override
+    public String toString() {
+        return "state=" + mState + " signals=" + Integer.toBinaryString(mLevels);
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        onSensorEvent(event.sensor.getType(), event.timestamp, event.values[0]);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    @Override
+    public void onSensorEvent(int sensorType, long timestampNs, float value) {
+        for (int signal = 0; signal < mSignalCount; signal++) {
+            if (mSignalTypes[signal] == sensorType) {
+                evaluate(signal, timestampNs, value);
+            }
+        }
+    }
+
+    private boolean setLevel(int signal, float value) {
+        boolean high;
+        switch (mPredicates[signal]) {
+            case NONZERO:
+                high = value != 0;
+                break;
+            case BELOW:
+                high = value < mThresholds[signal];
+                break;
+            default:
+                high = true;
+                break;
+        }
+        if (high) {
+            mLevels |= 1 << signal;
+        } else {
+            mLevels &= ~(1 << signal);
+        }
+        return high;
+    }
+
+    private void evaluate(int signal, long timestampNs, float value) {
+        int levels = mLevels;
+        boolean high = setLevel(signal, value);
+
+        int key = key(mState, signal, high);
+        long delta = timestampNs - mStateEnteredNs;
+        for (int i = mFirst[key]; i < mFirst[key + 1]; i++) {
+            if ((mLevels & mGuardMask[i]) != mGuardValue[i]
+                    || delta < mMinNs[i] || delta >= mMaxNs[i]) {
+                continue;
+            }
+            if (DEBUG) {
+                Log.d(TAG, mName + ": signal " + signal + "=" + high + ", state " + mState +
+                        " -> " + mTargets[i] + ", outcome " + mOutcomes[i]);
+            }
+            mState = mTargets[i];
+            mStateEnteredNs = timestampNs;
+            mPowerAccounting.onDecision();
+            if (mOutcomes[i] != NO_OUTCOME) {
+                mCallback.onRuleFired(mOutcomes[i], timestampNs);
+            }
+            return;
+        }
+        // Triggers stay high, only a changed state level is something gained from the event
+        if (mLevels != levels && mPredicates[signal] != ANY) {
+            mPowerAccounting.onDecision();
+        }
+    }
+
+    public static class Builder {
+        private final String mName;
+        private final int mStateCount;
+        private final ArrayList<Integer> mSignalTypes = new ArrayList<>();
+        private final ArrayList<Integer> mPredicates = new ArrayList<>();
+        private final ArrayList<Float> mThresholds = new ArrayList<>();
+        private final ArrayList<Transition> mTransitions = new ArrayList<>();
+
+        /**
+         * @param name used in debug logs
+         * @param stateCount number of states; state 0 is the initial state
+         */
+        public Builder(String name, int stateCount) {
+            mName = name;
+            mStateCount = stateCount;
+        }
+
+        /**
+         * Declare a signal derived from a sensor, which may be null if the device lacks it.
+         *
+         * @return the signal index to use in transitions
+         */
+        public int signal(Sensor sensor, int predicate) {
+            return signal(sensor, predicate, 0);
+        }
+
+        public int signal(Sensor sensor, int predicate, float threshold) {
+            if (mSignalTypes.size() == MAX_SIGNALS) {
+                throw new IllegalStateException("Too many signals in " + mName);
+            }
+            mSignalTypes.add(sensor != null ? sensor.getType() : -1);
+            mPredicates.add(predicate);
+            mThresholds.add(threshold);
+            return mSignalTypes.size() - 1;
+        }
+
+        /**
+         * Declare a transition taken from state {@code from} when {@code signal} reports
+         * {@code value}. Entering a state, including the one already in, restarts its timer.
+         */
+        public Transition on(int from, int signal, boolean value) {
+            Transition t = new Transition(from, signal, value);
+            mTransitions.add(t);
+            return t;
+        }
+
+        /**
+         * @param powerAccounting told about every event that changed the rule's state
+         */
+        public GestureRule build(Callback callback, PowerAccounting powerAccounting) {
+            return new GestureRule(this, callback, powerAccounting);
+        }
+    }
+
+    public static class Transition {
+        private final int mFrom;
+        private final int mSignal;
+        private final boolean mValue;
+        private int mGuardMask;
+        private int mGuardValue;
+        private long mMinNs = Long.MIN_VALUE;
+        private long mMaxNs = Long.MAX_VALUE;
+        private int mTo;
+        private int mOutcome = NO_OUTCOME;
+
+        private Transition(int from, int signal, boolean value) {
+            mFrom = from;
+            mSignal = signal;
+            mValue = value;
+            mTo = from;
+        }
+
+        /** Only take this transition while another signal is at the given level. */
+        public Transition when(int signal, boolean value) {
+            mGuardMask |= 1 << signal;
+            if (value) {
+                mGuardValue |= 1 << signal;
+            } else {
+                mGuardValue &= ~(1 << signal);
+            }
+            return this;
+        }
+
+        /** Only take this transition if the current state was entered less than maxNs ago. */
+        public Transition within(long maxNs) {
+            mMaxNs = maxNs;
+            return this;
+        }
+
+        /** Only take this transition if the current state was entered at least minNs ago. */
+        public Transition after(long minNs) {
+            mMinNs = minNs;
+            return this;
+        }
+
+        public Transition to(int state) {
+            mTo = state;
+            return this;
+        }
+
+        public Transition fire(int outcome) {
+            mOutcome = outcome;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-gesture counters and latency from the sensor event that fired a gesture to the
+ * completion of its action.
+ */
+public class GestureStats {
+    private final AtomicLongArray mTriggered = new AtomicLongArray(Gesture.COUNT);
+    private final AtomicLongArray mSuppressed = new AtomicLongArray(Gesture.COUNT);
+    private final AtomicLongArray mFired = new AtomicLongArray(Gesture.COUNT);
+    private final LatencyHistogram[] mLatency = new LatencyHistogram[Gesture.COUNT];
+
+    private final TimeSource mTimeSource;
+
+    public GestureStats(TimeSource timeSource) {
+        mTimeSource = timeSource;
+        for (int i = 0; i < Gesture.COUNT; i++) {
+            mLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    public void onTriggered(Gesture gesture) {
+        mTriggered.incrementAndGet(gesture.ordinal());
+    }
+
+    public void onSuppressed(Gesture gesture) {
+        mSuppressed.incrementAndGet(gesture.ordinal());
+    }
+
+    /**
+     * Record that the action of a gesture fired by an event stamped timestampNs completed.
+     */
+    public void onFired(Gesture gesture, long timestampNs) {
+        mFired.incrementAndGet(gesture.ordinal());
+        long latencyNs = mTimeSource.elapsedRealtimeNanos() - timestampNs;
+        mLatency[gesture.ordinal()].record(latencyNs / 1000);
+    }
+
+    public long getTriggered(Gesture gesture) {
+        return mTriggered.get(gesture.ordinal());
+    }
+
+    public long getSuppressed(Gesture gesture) {
+        return mSuppressed.get(gesture.ordinal());
+    }
+
+    public long getFired(Gesture gesture) {
+        return mFired.get(gesture.ordinal());
+    }
+
+    public LatencyHistogram getLatency(Gesture gesture) {
+        return mLatency[gesture.ordinal()];
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("Gesture stats:");
+        for (Gesture gesture : Gesture.values()) {
+            pw.println("  " + gesture + ": triggered=" + getTriggered(gesture)
+                    + " suppressed=" + getSuppressed(gesture) + " fired=" + getFired(gesture));
+            getLatency(gesture).dump(pw, "    ");
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Latency histogram with fixed log-linear buckets: each power of two range is split into
+ * eight, so any recorded value is off by at most 12.5%. Recording only bumps a counter.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough octaves for microsecond values of well over a day
+    private static final int OCTAVES = 40;
+    private static final int BUCKETS = SUB_BUCKETS * (OCTAVES + 1);
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount;
+    private long mMax;
+
+    public synchronized void record(long valueUs) {
+        if (valueUs < 0) {
+            valueUs = 0;
+        }
+        mCounts[Math.min(bucketOf(valueUs), BUCKETS - 1)]++;
+        mCount++;
+        mMax = Math.max(mMax, valueUs);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given percentile, or 0 if empty
+     */
+    public synchronized long getPercentile(double percentile) {
+        long rank = (long) Math.ceil(mCount * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBoundOf(i), mMax);
+            }
+        }
+        return 0;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mMax = 0;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "latency us: n=" + getCount() + " p50=" + getPercentile(50)
+                + " p90=" + getPercentile(90) + " p99=" + getPercentile(99)
+                + " max=" + getMax());
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int octave = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> octave) & (SUB_BUCKETS - 1);
+        return (octave + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int octave = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << octave) - 1;
+    }
+}
@@ -26,57 +26,123 @@ import android.os.IBinder;
 import android.os.PowerManager;
 import android.util.Log;
 
+import org.lineageos.settings.device.GestureEventBus.Topic;
 import org.lineageos.settings.device.actions.ChopChopSensor;
 import org.lineageos.settings.device.actions.FlipToMute;
 import org.lineageos.settings.device.actions.LiftToSilence;
 import org.lineageos.settings.device.actions.ProximitySilencer;
-import org.lineageos.settings.device.actions.UpdatedStateNotifier;
 import org.lineageos.settings.device.doze.DozePulseAction;
 import org.lineageos.settings.device.doze.FlatUpSensor;
-import org.lineageos.settings.device.doze.ScreenStateNotifier;
 import org.lineageos.settings.device.doze.StowSensor;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 
-public class MotoActionsService extends Service implements ScreenStateNotifier,
-        UpdatedStateNotifier {
+public class MotoActionsService extends Service {
     private static final String TAG = "MotoActions";
 
-    private final List<ScreenStateNotifier> mScreenStateNotifiers = new LinkedList<>();
-    private final List<UpdatedStateNotifier> mUpdatedStateNotifiers = new LinkedList<>();
+    private static final String SENSOR_TRACE_FILE = "sensor_trace.txt";
+
+    private static final long TORCH_DEBOUNCE_MS = 750;
+    private static final int TORCH_BURST = 3;
+    private static final long TORCH_REFILL_MS = 5000;
+    private static final long SILENCE_DEBOUNCE_MS = 2000;
+    private static final int INTERRUPTION_FILTER_BURST = 4;
+    private static final long INTERRUPTION_FILTER_REFILL_MS = 10000;
+
+    private final GestureEventBus mEventBus = new GestureEventBus();
 
     private PowerManager mPowerManager;
-    private PowerManager.WakeLock mWakeLock;
+    private SensorHelper mSensorHelper;
+    private WakeLockManager mWakeLockManager;
+    private DozePulseAction mDozePulseAction;
+    private GestureStats mGestureStats;
+    private PowerAccounting mPowerAccounting;
+
+    private StowSensor mStowSensor;
+    private FlatUpSensor mFlatUpSensor;
+    private ChopChopSensor mChopChopSensor;
+    private ProximitySilencer mProximitySilencer;
+    private FlipToMute mFlipToMute;
+    private LiftToSilence mLiftToSilence;
 
     public void onCreate() {
         Log.d(TAG, "Starting");
 
-        MotoActionsSettings actionsSettings = new MotoActionsSettings(this, this);
-        SensorHelper sensorHelper = new SensorHelper(this);
-        DozePulseAction dozePulseAction = new DozePulseAction(this);
-
-        mScreenStateNotifiers.add(dozePulseAction);
-
-        // Actionable sensors get screen on/off notifications
-        mScreenStateNotifiers.add(new StowSensor(actionsSettings, sensorHelper, dozePulseAction));
-        mScreenStateNotifiers.add(new FlatUpSensor(actionsSettings, sensorHelper, dozePulseAction));
+        MotoActionsSettings actionsSettings = new MotoActionsSettings(this, mEventBus);
+        PowerAccounting powerAccounting = new PowerAccounting(this);
+        mPowerAccounting = powerAccounting;
+        SensorHelper sensorHelper = new SensorHelper(this, powerAccounting);
+        mSensorHelper = sensorHelper;
+        WakeLockManager wakeLockManager = new WakeLockManager(this);
+        mWakeLockManager = wakeLockManager;
+        GestureStats gestureStats = new GestureStats(TimeSource.SYSTEM);
+        mGestureStats = gestureStats;
+        GestureDispatcher gestureDispatcher =
+                new GestureDispatcher(wakeLockManager, gestureStats, powerAccounting);
+        DozePulseAction dozePulseAction = new DozePulseAction(this, TimeSource.SYSTEM,
+                wakeLockManager, gestureDispatcher);
+        mDozePulseAction = dozePulseAction;
+        CallStateTracker callStateTracker =
+                new CallStateTracker(this, sensorHelper, TimeSource.SYSTEM);
+
+        mEventBus.subscribe(dozePulseAction, Topic.SCREEN_OFF);
+
+        setUpLimiters(gestureDispatcher, dozePulseAction);
+
+        // Actionable sensors follow the screen state and their doze settings
+        mStowSensor = new StowSensor(actionsSettings, sensorHelper, gestureDispatcher,
+                dozePulseAction);
+        mEventBus.subscribe(mStowSensor, Topic.SCREEN_ON, Topic.SCREEN_OFF, Topic.DOZE_SETTING,
+                Topic.IR_WAKEUP_SETTING, Topic.POCKET_SETTING);
+        mFlatUpSensor = new FlatUpSensor(actionsSettings, sensorHelper, wakeLockManager,
+                gestureDispatcher, dozePulseAction);
+        mEventBus.subscribe(mFlatUpSensor, Topic.SCREEN_ON, Topic.SCREEN_OFF,
+                Topic.DOZE_SETTING, Topic.PICK_UP_SETTING);
 
         // Other actions that are always enabled
-        mUpdatedStateNotifiers.add(new ChopChopSensor(actionsSettings, sensorHelper));
-        mUpdatedStateNotifiers.add(new ProximitySilencer(actionsSettings, this, sensorHelper));
-        mUpdatedStateNotifiers.add(new FlipToMute(actionsSettings, this, sensorHelper));
-        mUpdatedStateNotifiers.add(new LiftToSilence(actionsSettings, this, sensorHelper));
+        mChopChopSensor = new ChopChopSensor(actionsSettings, sensorHelper, gestureDispatcher);
+        mEventBus.subscribe(mChopChopSensor, Topic.CHOP_CHOP_SETTING);
+        mProximitySilencer = new ProximitySilencer(actionsSettings, this, sensorHelper,
+                gestureDispatcher, callStateTracker);
+        mEventBus.subscribe(mProximitySilencer, Topic.IR_SILENCER_SETTING);
+        mFlipToMute = new FlipToMute(actionsSettings, this, sensorHelper, gestureDispatcher);
+        mEventBus.subscribe(mFlipToMute, Topic.FLIP_TO_MUTE_SETTING);
+        mLiftToSilence = new LiftToSilence(actionsSettings, this, sensorHelper,
+                wakeLockManager, gestureDispatcher, callStateTracker);
+        mEventBus.subscribe(mLiftToSilence, Topic.LIFT_TO_SILENCE_SETTING);
 
         mPowerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
-        mWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
-                TAG + ":WakeLock");
 
         IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
         filter.addAction(Intent.ACTION_SCREEN_OFF);
         registerReceiver(mScreenStateReceiver, filter);
 
-        updateState();
+        // Bring every component in line with the current state, screen first
+        mEventBus.publish(mPowerManager.isInteractive() ? Topic.SCREEN_ON : Topic.SCREEN_OFF);
+        for (Topic topic : Topic.values()) {
+            if (topic != Topic.SCREEN_ON && topic != Topic.SCREEN_OFF) {
+                mEventBus.publish(topic);
+            }
+        }
+    }
+
+    static void setUpLimiters(GestureDispatcher gestureDispatcher,
+            DozePulseAction dozePulseAction) {
+        gestureDispatcher.setLimiter(Gesture.STOW, dozePulseAction.getLimiter());
+        gestureDispatcher.setLimiter(Gesture.PICK_UP, dozePulseAction.getLimiter());
+        // Keep the torch from flapping on a noisy chop sensor
+        gestureDispatcher.setLimiter(Gesture.CHOP_CHOP,
+                new ActionLimiter(TORCH_DEBOUNCE_MS, TORCH_BURST, TORCH_REFILL_MS, false));
+        // Silencing an already silent ringer is a wasted binder call
+        ActionLimiter silenceLimiter = new ActionLimiter(SILENCE_DEBOUNCE_MS, 0, 0, false);
+        gestureDispatcher.setLimiter(Gesture.PROXIMITY_SILENCER, silenceLimiter);
+        gestureDispatcher.setLimiter(Gesture.LIFT_TO_SILENCE, silenceLimiter);
+        gestureDispatcher.setLimiter(Gesture.FLIP_TO_MUTE, new ActionLimiter(0,
+                INTERRUPTION_FILTER_BURST, INTERRUPTION_FILTER_REFILL_MS, true));
     }
 
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -89,33 +155,46 @@ public class MotoActionsService extends Service implements ScreenStateNotifier,
     }
 
     @Override
-    public void screenTurnedOn() {
-        if (!mWakeLock.isHeld()) {
-            mWakeLock.acquire();
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (args != null && args.length >= 1 && "trace".equals(args[0])) {
+            dumpTrace(pw, args);
+            return;
         }
-        for (ScreenStateNotifier screenStateNotifier : mScreenStateNotifiers) {
-            screenStateNotifier.screenTurnedOn();
+        if (args != null && args.length > 0) {
+            pw.println("Usage: dumpsys activity service " + getClass().getName()
+                    + " [trace [flush | clear]]");
+            return;
         }
-    }
 
-    @Override
-    public void screenTurnedOff() {
-        if (mWakeLock.isHeld()) {
-            mWakeLock.release();
-        }
-        for (ScreenStateNotifier screenStateNotifier : mScreenStateNotifiers) {
-            screenStateNotifier.screenTurnedOff();
-        }
+        pw.println("Screen interactive: " + mPowerManager.isInteractive());
+        pw.println("Gestures:");
+        mStowSensor.dump(pw);
+        mFlatUpSensor.dump(pw);
+        mChopChopSensor.dump(pw);
+        mProximitySilencer.dump(pw);
+        mFlipToMute.dump(pw);
+        mLiftToSilence.dump(pw);
+        mSensorHelper.dump(pw);
+        mWakeLockManager.dump(pw);
+        mGestureStats.dump(pw);
+        mDozePulseAction.dump(pw);
+        mPowerAccounting.dump(pw);
     }
 
-    public void updateState() {
-        if (mPowerManager.isInteractive()) {
-            screenTurnedOn();
-        } else {
-            screenTurnedOff();
-        }
-        for (UpdatedStateNotifier notifier : mUpdatedStateNotifiers) {
-            notifier.updateState();
+    private void dumpTrace(PrintWriter pw, String[] args) {
+        SensorTraceRecorder recorder = mSensorHelper.getTraceRecorder();
+        if (args.length == 1) {
+            recorder.export(pw);
+        } else if ("flush".equals(args[1])) {
+            File file = new File(getFilesDir(), SENSOR_TRACE_FILE);
+            try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+                recorder.export(writer);
+                pw.println("Wrote " + file);
+            } catch (IOException e) {
+                pw.println("Failed to write " + file + ": " + e);
+            }
+        } else if ("clear".equals(args[1])) {
+            recorder.clear();
         }
     }
 
@@ -123,9 +202,9 @@ public class MotoActionsService extends Service implements ScreenStateNotifier,
         @Override
         public void onReceive(Context context, Intent intent) {
             if (intent.getAction().equals(Intent.ACTION_SCREEN_OFF)) {
-                screenTurnedOff();
+                mEventBus.publish(Topic.SCREEN_OFF);
             } else if (intent.getAction().equals(Intent.ACTION_SCREEN_ON)) {
-                screenTurnedOn();
+                mEventBus.publish(Topic.SCREEN_ON);
             }
         }
     };
@@ -22,14 +22,18 @@ import static android.provider.Settings.Secure.DOZE_ENABLED;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.hardware.display.AmbientDisplayConfiguration;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.UserHandle;
 import android.provider.Settings;
 
 import androidx.preference.PreferenceManager;
 
+import org.lineageos.settings.device.GestureEventBus.Topic;
 import org.lineageos.settings.device.actions.TorchAction;
-import org.lineageos.settings.device.actions.UpdatedStateNotifier;
 
 public class MotoActionsSettings {
     private static final String GESTURE_CHOP_CHOP_KEY = "gesture_chop_chop";
@@ -45,22 +49,37 @@ public class MotoActionsSettings {
     static final String ALWAYS_ON_DISPLAY = "always_on_display";
 
     private final Context mContext;
-    private final UpdatedStateNotifier mUpdatedStateNotifier;
+    private final GestureEventBus mEventBus;
 
-    private boolean mChopChopEnabled;
-    private boolean mPickUpGestureEnabled;
-    private boolean mPocketGestureEnabled;
-    private boolean mIrWakeUpEnabled;
-    private boolean mIrSilencerEnabled;
-    private boolean mFlipToMuteEnabled;
-    private boolean mLiftToSilenceEnabled;
+    // Written on the main thread, read on the sensor thread too
+    private volatile boolean mChopChopEnabled;
+    private volatile boolean mPickUpGestureEnabled;
+    private volatile boolean mPocketGestureEnabled;
+    private volatile boolean mIrWakeUpEnabled;
+    private volatile boolean mIrSilencerEnabled;
+    private volatile boolean mFlipToMuteEnabled;
+    private volatile boolean mLiftToSilenceEnabled;
 
-    public MotoActionsSettings(Context context, UpdatedStateNotifier updatedStateNotifier) {
+    // Cached Settings.Secure values, kept fresh by mDozeObserver
+    private volatile boolean mDozeEnabled;
+    private volatile boolean mAlwaysOnEnabled;
+
+    private TorchAction mTorchAction;
+
+    public MotoActionsSettings(Context context, GestureEventBus eventBus) {
         SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
         loadPreferences(sharedPrefs);
         sharedPrefs.registerOnSharedPreferenceChangeListener(mPrefListener);
         mContext = context;
-        mUpdatedStateNotifier = updatedStateNotifier;
+        mEventBus = eventBus;
+
+        mContext.getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(DOZE_ENABLED), false, mDozeObserver,
+                UserHandle.USER_ALL);
+        mContext.getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(DOZE_ALWAYS_ON), false, mDozeObserver,
+                UserHandle.USER_ALL);
+        loadDozeSettings();
     }
 
     public boolean isChopChopGestureEnabled() {
@@ -92,11 +111,11 @@ public class MotoActionsSettings {
     }
 
     public boolean isAlwaysOnEnabled() {
-        return isAlwaysOnEnabled(mContext);
+        return mAlwaysOnEnabled;
     }
 
     public boolean isDozeEnabled() {
-        return isDozeEnabled(mContext);
+        return mDozeEnabled;
     }
 
     public boolean isIrWakeupEnabled() {
@@ -124,7 +143,23 @@ public class MotoActionsSettings {
     }
 
     public void chopChopAction() {
-        new TorchAction(mContext).action();
+        getTorchAction().action();
+    }
+
+    /**
+     * Get the torch ready for a chop that is likely to follow. Must be called from the thread
+     * chop-chop actions run on.
+     */
+    public void prewarmTorch() {
+        getTorchAction().prewarm();
+    }
+
+    private TorchAction getTorchAction() {
+        // Created once and kept, it caches the camera and torch state across chops
+        if (mTorchAction == null) {
+            mTorchAction = new TorchAction(mContext);
+        }
+        return mTorchAction;
     }
 
     private void loadPreferences(SharedPreferences sharedPreferences) {
@@ -137,32 +172,57 @@ public class MotoActionsSettings {
         mLiftToSilenceEnabled = sharedPreferences.getBoolean(GESTURE_LIFT_TO_SILENCE_KEY, false);
     }
 
+    private void loadDozeSettings() {
+        mDozeEnabled = isDozeEnabled(mContext);
+        mAlwaysOnEnabled = isAlwaysOnEnabled(mContext);
+    }
+
+    private final ContentObserver mDozeObserver =
+            new ContentObserver(new Handler(Looper.getMainLooper())) {
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    boolean dozeEnabled = mDozeEnabled;
+                    boolean alwaysOnEnabled = mAlwaysOnEnabled;
+                    loadDozeSettings();
+                    if (dozeEnabled != mDozeEnabled || alwaysOnEnabled != mAlwaysOnEnabled) {
+                        mEventBus.publish(Topic.DOZE_SETTING);
+                    }
+                }
+            };
+
     private final SharedPreferences.OnSharedPreferenceChangeListener mPrefListener =
             new SharedPreferences.OnSharedPreferenceChangeListener() {
                 @Override
                 public void onSharedPreferenceChanged(SharedPreferences sharedPrefs, String key) {
-                    boolean updated = true;
+                    Topic topic;
 
                     if (GESTURE_CHOP_CHOP_KEY.equals(key)) {
                         mChopChopEnabled = sharedPrefs.getBoolean(GESTURE_CHOP_CHOP_KEY, true);
+                        topic = Topic.CHOP_CHOP_SETTING;
                     } else if (GESTURE_IR_WAKEUP_KEY.equals(key)) {
                         mIrWakeUpEnabled = sharedPrefs.getBoolean(GESTURE_IR_WAKEUP_KEY, true);
+                        topic = Topic.IR_WAKEUP_SETTING;
                     } else if (GESTURE_PICK_UP_KEY.equals(key)) {
                         mPickUpGestureEnabled = sharedPrefs.getBoolean(GESTURE_PICK_UP_KEY, true);
+                        topic = Topic.PICK_UP_SETTING;
                     } else if (GESTURE_POCKET_KEY.equals(key)) {
                         mPocketGestureEnabled = sharedPrefs.getBoolean(GESTURE_POCKET_KEY, true);
+                        topic = Topic.POCKET_SETTING;
                     } else if (GESTURE_IR_SILENCER_KEY.equals(key)) {
                         mIrSilencerEnabled = sharedPrefs.getBoolean(GESTURE_IR_SILENCER_KEY, false);
+                        topic = Topic.IR_SILENCER_SETTING;
                     } else if (GESTURE_FLIP_TO_MUTE_KEY.equals(key)) {
                         mFlipToMuteEnabled = sharedPrefs.getBoolean(GESTURE_FLIP_TO_MUTE_KEY, false);
+                        topic = Topic.FLIP_TO_MUTE_SETTING;
                     } else if (GESTURE_LIFT_TO_SILENCE_KEY.equals(key)) {
                         mLiftToSilenceEnabled = sharedPrefs.getBoolean(GESTURE_LIFT_TO_SILENCE_KEY, false);
+                        topic = Topic.LIFT_TO_SILENCE_SETTING;
                     } else {
-                        updated = false;
+                        topic = null;
                     }
 
-                    if (updated) {
-                        mUpdatedStateNotifier.updateState();
+                    if (topic != null) {
+                        mEventBus.publish(topic);
                     }
                 }
             };
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+/**
+ * The rule of gestures that fire when the device is lifted after lying flat, face up, unless
+ * it is being put into a pocket. The stowed state must be applied in timestamp order relative
+ * to the flat-up transitions, so feed the rule through a {@link SensorEventMerger}.
+ */
+public final class PickUpRule {
+    public static final int OUTCOME_PICK_UP = 0;
+
+    private static final int STATE_NOT_FLAT = 0;
+    private static final int STATE_FLAT = 1;
+    private static final int STATE_COUNT = 2;
+
+    private PickUpRule() {
+    }
+
+    public static GestureRule build(String name, SensorHelper sensorHelper,
+            GestureRule.Callback callback) {
+        GestureRule.Builder rule = new GestureRule.Builder(name, STATE_COUNT);
+        int flatUp = rule.signal(sensorHelper.getFlatUpSensor(), GestureRule.NONZERO);
+        int stowed = rule.signal(sensorHelper.getStowSensor(), GestureRule.NONZERO);
+        rule.on(STATE_NOT_FLAT, flatUp, true).to(STATE_FLAT);
+        rule.on(STATE_FLAT, flatUp, false).when(stowed, false)
+                .to(STATE_NOT_FLAT).fire(OUTCOME_PICK_UP);
+        rule.on(STATE_FLAT, flatUp, false).to(STATE_NOT_FLAT);
+        return rule.build(callback, sensorHelper.getPowerAccounting());
+    }
+}
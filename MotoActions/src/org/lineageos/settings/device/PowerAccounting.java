@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Sensor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sensor cost per gesture component: how long each sensor stayed registered for it and how
+ * many events it delivered, and per sensor, how many wakeups led to no decision or action.
+ * Totals are kept per calendar day and written to preferences once an hour and when the day
+ * ends. Both are timed on elapsed realtime with alarms that don't wake the device, so a
+ * suspended device catches up when it next wakes. Registered time spanning midnight is split
+ * between the two days. A restarted process continues from the totals already written for
+ * today, read in the background. A week of history is kept.
+ */
+public class PowerAccounting {
+    private static final String TAG = "MotoActions-PowerAccounting";
+
+    private static final String PREFS = "power_stats";
+    private static final String NO_ACTION = "noAction";
+    private static final int HISTORY_DAYS = 7;
+    private static final long FLUSH_INTERVAL_MS = 60 * 60 * 1000;
+
+    // Distinct sensor types tracked, gesture components use a handful
+    private static final int MAX_SENSORS = 8;
+
+    private final SharedPreferences mPrefs;
+    private final AlarmManager mAlarmManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AlarmManager.OnAlarmListener mFlush = this::flush;
+
+    private final int[] mSensorTypes = new int[MAX_SENSORS];
+    private int mSensorCount;
+
+    // Current day totals, by gesture and sensor slot
+    private final Totals mToday = new Totals();
+    private final long[][] mRegisteredSinceMs = new long[Gesture.COUNT][MAX_SENSORS];
+    private long mDay;
+
+    // Elapsed realtime at which the current day ends
+    private long mDayEndMs;
+
+    // Whether the totals written for today before a restart were added to mToday
+    private boolean mLoaded;
+
+    // Whether anything used the sensor event being delivered, on the sensor thread
+    private boolean mEventUsed;
+
+    public PowerAccounting(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        mAlarmManager = context.getSystemService(AlarmManager.class);
+
+        ZonedDateTime now = ZonedDateTime.now();
+        mDay = now.toLocalDate().toEpochDay();
+        mDayEndMs = SystemClock.elapsedRealtime()
+                + Duration.between(now, startOfDay(mDay + 1)).toMillis();
+        scheduleFlush();
+
+        // Reading preferences blocks until they are loaded, keep it off service startup
+        new Thread(this::loadToday, TAG + "-Load").start();
+    }
+
+    private void loadToday() {
+        long day;
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+            day = mDay;
+        }
+        String stored = mPrefs.getString(Long.toString(day), null);
+        synchronized (this) {
+            // Counts so far are added to, unless a write got in first and loaded them itself
+            if (!mLoaded && day == mDay) {
+                parse(stored, mToday);
+            }
+            mLoaded = true;
+        }
+    }
+
+    /**
+     * Before today's totals are written, make sure they include what was written before.
+     */
+    private void ensureLoaded() {
+        if (!mLoaded) {
+            parse(mPrefs.getString(Long.toString(mDay), null), mToday);
+            mLoaded = true;
+        }
+    }
+
+    private static ZonedDateTime startOfDay(long day) {
+        return LocalDate.ofEpochDay(day).atStartOfDay(ZoneId.systemDefault());
+    }
+
+    public synchronized void onRegistered(Gesture gesture, Sensor sensor) {
+        long now = SystemClock.elapsedRealtime();
+        rollOver(now);
+        int slot = slotOf(sensor.getType());
+        if (slot >= 0 && mRegisteredSinceMs[gesture.ordinal()][slot] == 0) {
+            mRegisteredSinceMs[gesture.ordinal()][slot] = now;
+        }
+    }
+
+    public synchronized void onUnregistered(Gesture gesture, Sensor sensor) {
+        long now = SystemClock.elapsedRealtime();
+        rollOver(now);
+        int slot = slotOf(sensor.getType());
+        if (slot < 0) {
+            return;
+        }
+        long since = mRegisteredSinceMs[gesture.ordinal()][slot];
+        if (since != 0) {
+            mToday.mRegisteredMs[gesture.ordinal()][slot] += now - since;
+            mRegisteredSinceMs[gesture.ordinal()][slot] = 0;
+        }
+    }
+
+    public synchronized void onEvent(Gesture gesture, int sensorType) {
+        rollOver(SystemClock.elapsedRealtime());
+        int slot = slotOf(sensorType);
+        if (slot >= 0) {
+            mToday.mEvents[gesture.ordinal()][slot]++;
+        }
+    }
+
+    /**
+     * Count an event that led the gesture to run its action.
+     */
+    public synchronized void onAction(Gesture gesture) {
+        rollOver(SystemClock.elapsedRealtime());
+        mToday.mActions[gesture.ordinal()]++;
+        mEventUsed = true;
+    }
+
+    /**
+     * A sensor event is about to be handed to its listeners, on the sensor thread.
+     */
+    public synchronized void onEventStart() {
+        mEventUsed = false;
+    }
+
+    /**
+     * The event being handed on changed the state of a gesture or was taken over to be
+     * decided on later.
+     */
+    public synchronized void onDecision() {
+        mEventUsed = true;
+    }
+
+    /**
+     * All listeners saw the event, count a wakeup for nothing if none of them used it.
+     */
+    public synchronized void onEventEnd(int sensorType) {
+        rollOver(SystemClock.elapsedRealtime());
+        int slot = slotOf(sensorType);
+        if (!mEventUsed && slot >= 0) {
+            mToday.mNoAction[slot]++;
+        }
+    }
+
+    private int slotOf(int sensorType) {
+        for (int i = 0; i < mSensorCount; i++) {
+            if (mSensorTypes[i] == sensorType) {
+                return i;
+            }
+        }
+        if (mSensorCount == MAX_SENSORS) {
+            return -1;
+        }
+        mSensorTypes[mSensorCount] = sensorType;
+        return mSensorCount++;
+    }
+
+    /**
+     * Close every day that ended before now, so that nothing after midnight is booked to it.
+     */
+    private void rollOver(long now) {
+        if (now < mDayEndMs) {
+            return;
+        }
+        ensureLoaded();
+        SharedPreferences.Editor editor = mPrefs.edit();
+        while (now >= mDayEndMs) {
+            editor.putString(Long.toString(mDay), serialize(mDayEndMs));
+            // Registrations still active carry over into the new day
+            mToday.clear();
+            for (int g = 0; g < Gesture.COUNT; g++) {
+                for (int s = 0; s < mSensorCount; s++) {
+                    if (mRegisteredSinceMs[g][s] != 0) {
+                        mRegisteredSinceMs[g][s] = mDayEndMs;
+                    }
+                }
+            }
+            mDay++;
+            mDayEndMs += Duration.between(startOfDay(mDay), startOfDay(mDay + 1)).toMillis();
+        }
+        for (String key : mPrefs.getAll().keySet()) {
+            if (Long.parseLong(key) <= mDay - HISTORY_DAYS) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    private void flush() {
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            rollOver(now);
+            ensureLoaded();
+            mPrefs.edit().putString(Long.toString(mDay), serialize(now)).apply();
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        long triggerAtMs;
+        synchronized (this) {
+            triggerAtMs = Math.min(SystemClock.elapsedRealtime() + FLUSH_INTERVAL_MS, mDayEndMs);
+        }
+        mAlarmManager.set(AlarmManager.ELAPSED_REALTIME, triggerAtMs, TAG, mFlush, mHandler);
+    }
+
+    private long getRegisteredMs(Totals totals, int g, int s, long now) {
+        long registeredMs = totals.mRegisteredMs[g][s];
+        if (totals == mToday && mRegisteredSinceMs[g][s] != 0) {
+            registeredMs += now - mRegisteredSinceMs[g][s];
+        }
+        return registeredMs;
+    }
+
+    /**
+     * The stored form of today's totals: "GESTURE type registeredMs events" per gesture and
+     * sensor, "GESTURE actions count" per gesture and "noAction type count" per sensor, one per
+     * line.
+     */
+    private String serialize(long now) {
+        StringBuilder sb = new StringBuilder();
+        for (Gesture gesture : Gesture.values()) {
+            int g = gesture.ordinal();
+            for (int s = 0; s < mSensorCount; s++) {
+                long registeredMs = getRegisteredMs(mToday, g, s, now);
+                if (registeredMs == 0 && mToday.mEvents[g][s] == 0) {
+                    continue;
+                }
+                sb.append(gesture).append(' ').append(mSensorTypes[s])
+                        .append(' ').append(registeredMs)
+                        .append(' ').append(mToday.mEvents[g][s]).append('\n');
+            }
+            if (mToday.mActions[g] != 0) {
+                sb.append(gesture).append(" actions ").append(mToday.mActions[g]).append('\n');
+            }
+        }
+        for (int s = 0; s < mSensorCount; s++) {
+            if (mToday.mNoAction[s] != 0) {
+                sb.append(NO_ACTION).append(' ').append(mSensorTypes[s])
+                        .append(' ').append(mToday.mNoAction[s]).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private void parse(String stored, Totals totals) {
+        if (stored == null) {
+            return;
+        }
+        for (String line : stored.split("\n")) {
+            String[] fields = line.split(" ");
+            try {
+                if (fields.length == 3 && NO_ACTION.equals(fields[0])) {
+                    int slot = slotOf(Integer.parseInt(fields[1]));
+                    if (slot >= 0) {
+                        totals.mNoAction[slot] += Long.parseLong(fields[2]);
+                    }
+                    continue;
+                }
+                int g = Gesture.valueOf(fields[0]).ordinal();
+                if (fields.length == 3 && "actions".equals(fields[1])) {
+                    totals.mActions[g] += Long.parseLong(fields[2]);
+                } else if (fields.length == 4) {
+                    int slot = slotOf(Integer.parseInt(fields[1]));
+                    if (slot >= 0) {
+                        totals.mRegisteredMs[g][slot] += Long.parseLong(fields[2]);
+                        totals.mEvents[g][slot] += Long.parseLong(fields[3]);
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                // Not in the stored form, skip the line
+            }
+        }
+    }
+
+    /**
+     * One line per gesture: for each sensor its type, registered seconds and events, then the
+     * number of actions. Then one line per sensor with the wakeups that led to nothing.
+     */
+    private void dump(PrintWriter pw, Totals totals, long now) {
+        for (Gesture gesture : Gesture.values()) {
+            int g = gesture.ordinal();
+            StringBuilder sensors = new StringBuilder();
+            for (int s = 0; s < mSensorCount; s++) {
+                long registeredMs = getRegisteredMs(totals, g, s, now);
+                if (registeredMs == 0 && totals.mEvents[g][s] == 0) {
+                    continue;
+                }
+                sensors.append(" sensor=").append(mSensorTypes[s])
+                        .append(" registeredS=").append(registeredMs / 1000)
+                        .append(" events=").append(totals.mEvents[g][s]);
+            }
+            if (sensors.length() == 0) {
+                continue;
+            }
+            pw.println("  " + gesture + ":" + sensors + " actions=" + totals.mActions[g]);
+        }
+        for (int s = 0; s < mSensorCount; s++) {
+            if (totals.mNoAction[s] != 0) {
+                pw.println("  sensor=" + mSensorTypes[s] + " noAction=" + totals.mNoAction[s]);
+            }
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        long now = SystemClock.elapsedRealtime();
+        rollOver(now);
+        pw.println("Power accounting (today):");
+        dump(pw, mToday, now);
+        Map<Long, String> history = new TreeMap<>();
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            long day = Long.parseLong(entry.getKey());
+            if (day != mDay) {
+                history.put(day, String.valueOf(entry.getValue()));
+            }
+        }
+        for (Map.Entry<Long, String> entry : history.entrySet()) {
+            pw.println("Power accounting (" + LocalDate.ofEpochDay(entry.getKey()) + "):");
+            Totals totals = new Totals();
+            parse(entry.getValue(), totals);
+            dump(pw, totals, now);
+        }
+    }
+
+    private static class Totals {
+        final long[][] mRegisteredMs = new long[Gesture.COUNT][MAX_SENSORS];
+        final long[][] mEvents = new long[Gesture.COUNT][MAX_SENSORS];
+        final long[] mActions = new long[Gesture.COUNT];
+        final long[] mNoAction = new long[MAX_SENSORS];
+
+        void clear() {
+            for (int s = 0; s < MAX_SENSORS; s++) {
+                mNoAction[s] = 0;
+            }
+            for (int g = 0; g < Gesture.COUNT; g++) {
+                mActions[g] = 0;
+                for (int s = 0; s < MAX_SENSORS; s++) {
+                    mRegisteredMs[g][s] = 0;
+                    mEvents[g][s] = 0;
+                }
+            }
+        }
+    }
+}
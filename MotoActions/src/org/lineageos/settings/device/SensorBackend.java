@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+import java.util.List;
+
+/**
+ * The part of SensorManager that {@link SensorHelper} relies on. Tests provide their own
+ * sensors and events through it, to run recorded traces against fresh gesture components.
+ */
+public interface SensorBackend {
+    List<Sensor> getSensorList();
+
+    /**
+     * @return the default wakeup sensor of the given type, or null if there is none
+     */
+    Sensor getDefaultWakeUpSensor(int type);
+
+    boolean registerListener(SensorEventListener listener, Sensor sensor, int samplingPeriodUs,
+            int maxReportLatencyUs, Handler handler);
+
+    void unregisterListener(SensorEventListener listener);
+
+    static SensorBackend forContext(Context context) {
+        SensorManager sensorManager = context.getSystemService(SensorManager.class);
+        return new SensorBackend() {
+            @Override
+            public List<Sensor> getSensorList() {
+                return sensorManager.getSensorList(Sensor.TYPE_ALL);
+            }
+
+            @Override
+            public Sensor getDefaultWakeUpSensor(int type) {
+                return sensorManager.getDefaultSensor(type, true);
+            }
+
+            @Override
+            public boolean registerListener(SensorEventListener listener, Sensor sensor,
+                    int samplingPeriodUs, int maxReportLatencyUs, Handler handler) {
+                return sensorManager.registerListener(listener, sensor, samplingPeriodUs,
+                        maxReportLatencyUs, handler);
+            }
+
+            @Override
+            public void unregisterListener(SensorEventListener listener) {
+                sensorManager.unregisterListener(listener);
+            }
+        };
+    }
+}
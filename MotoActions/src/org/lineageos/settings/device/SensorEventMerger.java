@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.lineageos.settings.device.SensorHelper.LatencyProfile;
+
+/**
+ * Merges the event streams of several sensors into timestamp order. Batched sensors flush
+ * their FIFOs independently, up to their maximum report latency apart, so events are held for
+ * that long and sorted before being handed on, under a wakelock as the flush is not a wakeup.
+ * Sensors that don't batch are passed through right away. Only the first event value is kept,
+ * which is all the on-change gesture sensors report. Must be used from the sensor thread,
+ * apart from {@link #register}.
+ */
+public class SensorEventMerger implements SensorEventListener {
+    private static final String TAG = "MotoActions-SensorEventMerger";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    public interface Sink {
+        void onSensorEvent(int sensorType, long timestampNs, float value);
+    }
+
+    private static final int CAPACITY = 32;
+
+    private final SensorHelper mSensorHelper;
+    private final WakeLockManager mWakeLockManager;
+    private final Gesture mOwner;
+    private final Handler mHandler;
+    private final LatencyProfile mProfile;
+    private final Sink mSink;
+
+    // How long to wait for other sensors' batches before handing events on
+    private final long mWindowMs;
+
+    // Newest event handed on, anything older arrived too late to be put in order. Such events
+    // are still handed on, signal levels must follow the latest value of each sensor.
+    private long mLastFlushedNs;
+    private volatile int mLateCount;
+
+    private final int[] mTypes = new int[CAPACITY];
+    private final long[] mTimestamps = new long[CAPACITY];
+    private final float[] mValues = new float[CAPACITY];
+    private int mSize;
+
+    private final Runnable mFlush = this::flush;
+
+    /**
+     * @param owner the gesture the sensors and the wakelock held for events are accounted to
+     * @param profile the profile all merged sensors are registered with, see {@link #register}
+     */
+    public SensorEventMerger(SensorHelper sensorHelper, WakeLockManager wakeLockManager,
+            Gesture owner, LatencyProfile profile, Sink sink) {
+        mSensorHelper = sensorHelper;
+        mWakeLockManager = wakeLockManager;
+        mOwner = owner;
+        mHandler = sensorHelper.getHandler();
+        mProfile = profile;
+        mSink = sink;
+        mWindowMs = profile.maxReportLatencyMs;
+    }
+
+    /**
+     * Register for one of the sensors to merge.
+     */
+    public void register(Sensor sensor) {
+        mSensorHelper.registerListener(mOwner, sensor, this, mProfile);
+    }
+
+    /**
+     * Number of events handed on out of order, as they arrived after newer ones were.
+     */
+    public int getLateCount() {
+        return mLateCount;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        long timestamp = event.timestamp;
+        if (timestamp < mLastFlushedNs) {
+            if (DEBUG) Log.d(TAG, "Late event of sensor " + event.sensor.getType());
+            mLateCount++;
+            mSink.onSensorEvent(event.sensor.getType(), timestamp, event.values[0]);
+            return;
+        }
+        if (mWindowMs == 0) {
+            mLastFlushedNs = timestamp;
+            mSink.onSensorEvent(event.sensor.getType(), timestamp, event.values[0]);
+            return;
+        }
+        if (mSize == CAPACITY) {
+            flush();
+        }
+
+        // Insertion sort, the buffer is tiny and mostly in order already
+        int i = mSize;
+        while (i > 0 && mTimestamps[i - 1] > timestamp) {
+            mTypes[i] = mTypes[i - 1];
+            mTimestamps[i] = mTimestamps[i - 1];
+            mValues[i] = mValues[i - 1];
+            i--;
+        }
+        mTypes[i] = event.sensor.getType();
+        mTimestamps[i] = timestamp;
+        mValues[i] = event.values[0];
+
+        // Whether it leads to anything is only known once it is handed on
+        mSensorHelper.getPowerAccounting().onDecision();
+        if (mSize++ == 0) {
+            // SensorService lets the device suspend once this returns, which would hold the
+            // events until the next wakeup
+            mWakeLockManager.acquire(mOwner);
+            mHandler.postAtTime(mFlush, this, SystemClock.uptimeMillis() + mWindowMs);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    /**
+     * Drop any held events, e.g. after the underlying sensors were unregistered.
+     */
+    public void reset() {
+        mHandler.removeCallbacksAndMessages(this);
+        if (mSize > 0) {
+            mWakeLockManager.release(mOwner);
+        }
+        mSize = 0;
+        mLastFlushedNs = 0;
+    }
+
+    private void flush() {
+        mHandler.removeCallbacksAndMessages(this);
+        int size = mSize;
+        mSize = 0;
+        PowerAccounting powerAccounting = mSensorHelper.getPowerAccounting();
+        for (int i = 0; i < size; i++) {
+            powerAccounting.onEventStart();
+            mSink.onSensorEvent(mTypes[i], mTimestamps[i], mValues[i]);
+            powerAccounting.onEventEnd(mTypes[i]);
+        }
+        if (size > 0) {
+            mLastFlushedNs = mTimestamps[size - 1];
+            // Anything dispatched above holds its own wakelock
+            mWakeLockManager.release(mOwner);
+        }
+    }
+}
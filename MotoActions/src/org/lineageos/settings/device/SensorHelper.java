@@ -18,15 +18,27 @@
 package org.lineageos.settings.device;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.hardware.Sensor;
+import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
+import android.util.SparseArray;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public class SensorHelper {
     private static final String TAG = "MotoActions";
@@ -36,62 +48,383 @@ public class SensorHelper {
     private static final int SENSOR_TYPE_MMI_FLAT_DOWN = 65538;
     private static final int SENSOR_TYPE_MMI_STOW = 65539;
 
-    private static final int BATCH_LATENCY_IN_MS = 100;
+    private static final String SENSORS_DUMP_FILE = "sensors.txt";
+    private static final String SENSORS_PREFS = "sensors";
+    private static final String KEY_SENSORS_FINGERPRINT = "fingerprint";
+
+    /**
+     * How eagerly a subscriber needs events delivered. When several subscribers share a
+     * sensor, the most demanding profile wins.
+     */
+    public enum LatencyProfile {
+        // Gestures the user is waiting on, e.g. silencing a ringing phone
+        LOW_LATENCY(SensorManager.SENSOR_DELAY_GAME, 0),
+        // The default used for all gestures so far
+        BALANCED(SensorManager.SENSOR_DELAY_NORMAL, 100),
+        // Slow state tracking where seconds of batching are acceptable
+        DEEP_BATCH(SensorManager.SENSOR_DELAY_NORMAL, 2000);
+
+        final int samplingPeriod;
+        final int maxReportLatencyMs;
+
+        LatencyProfile(int samplingPeriod, int maxReportLatencyMs) {
+            this.samplingPeriod = samplingPeriod;
+            this.maxReportLatencyMs = maxReportLatencyMs;
+        }
+    }
 
     private final Context mContext;
-    private final SensorManager mSensorManager;
+    private final SensorBackend mSensorBackend;
+
+    // All sensor events are delivered here, so listener state is confined to one thread
+    private final HandlerThread mSensorThread;
+    private final Handler mSensorHandler;
 
-    public SensorHelper(Context context) {
+    // Resolved wakeup sensors by type, including misses
+    private final SparseArray<Sensor> mSensors = new SparseArray<>();
+
+    // One real registration per physical sensor, shared by all subscribers
+    private final Map<Sensor, SensorMultiplexer> mMultiplexers = new HashMap<>();
+
+    private final SensorTraceRecorder mTraceRecorder = new SensorTraceRecorder();
+    private final PowerAccounting mPowerAccounting;
+
+    public SensorHelper(Context context, PowerAccounting powerAccounting) {
+        this(context, SensorBackend.forContext(context), powerAccounting);
+    }
+
+    public SensorHelper(Context context, SensorBackend sensorBackend,
+            PowerAccounting powerAccounting) {
         mContext = context;
-        mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
-        dumpSensorsList();
+        mPowerAccounting = powerAccounting;
+        mSensorBackend = sensorBackend;
+
+        mSensorThread = new HandlerThread(TAG + "-Sensors", Process.THREAD_PRIORITY_FOREGROUND);
+        mSensorThread.start();
+        mSensorHandler = new Handler(mSensorThread.getLooper());
+
+        // Keep file I/O off the service startup path
+        new Thread(this::dumpSensorsList, TAG + "-SensorDump").start();
     }
 
     private void dumpSensorsList() {
-        try {
-            FileOutputStream out = mContext.openFileOutput("sensors.txt", Context.MODE_PRIVATE);
-            OutputStreamWriter writer = new OutputStreamWriter(out);
-
-            List<Sensor> sensorList = mSensorManager.getSensorList(Sensor.TYPE_ALL);
-            for (Sensor sensor : sensorList) {
-                writer.write("sensor " + sensor.getType() + " = " + sensor.getName()
-                        + " max batch: " + sensor.getFifoMaxEventCount() + " isWakeUp: "
-                        + sensor.isWakeUpSensor() + "\n");
-            }
-            writer.close();
+        List<Sensor> sensorList = mSensorBackend.getSensorList();
+        StringBuilder dump = new StringBuilder();
+        for (Sensor sensor : sensorList) {
+            dump.append("sensor ").append(sensor.getType()).append(" = ").append(sensor.getName())
+                    .append(" max batch: ").append(sensor.getFifoMaxEventCount())
+                    .append(" isWakeUp: ").append(sensor.isWakeUpSensor()).append("\n");
+        }
+
+        // Sensors only change with the build, so skip the rewrite if nothing moved
+        String fingerprint = Build.FINGERPRINT + ":"
+                + Integer.toHexString(dump.toString().hashCode());
+        SharedPreferences prefs =
+                mContext.getSharedPreferences(SENSORS_PREFS, Context.MODE_PRIVATE);
+        if (fingerprint.equals(prefs.getString(KEY_SENSORS_FINGERPRINT, null))
+                && mContext.getFileStreamPath(SENSORS_DUMP_FILE).exists()) {
+            return;
+        }
+
+        try (OutputStreamWriter writer = new OutputStreamWriter(
+                mContext.openFileOutput(SENSORS_DUMP_FILE, Context.MODE_PRIVATE))) {
+            writer.write(dump.toString());
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            Log.e(TAG, "Failed to dump sensors list", e);
+            return;
+        }
+        prefs.edit().putString(KEY_SENSORS_FINGERPRINT, fingerprint).apply();
+    }
+
+    /**
+     * Looper on which all sensor events are delivered. Components that share state with their
+     * sensor listeners should receive their other callbacks here too.
+     */
+    public Looper getLooper() {
+        return mSensorThread.getLooper();
+    }
+
+    public Handler getHandler() {
+        return mSensorHandler;
+    }
+
+    private synchronized Sensor getSensor(int type) {
+        int index = mSensors.indexOfKey(type);
+        if (index >= 0) {
+            return mSensors.valueAt(index);
         }
+        Sensor sensor = mSensorBackend.getDefaultWakeUpSensor(type);
+        mSensors.put(type, sensor);
+        return sensor;
     }
 
     public Sensor getChopChopSensor() {
-        return mSensorManager.getDefaultSensor(SENSOR_TYPE_MMI_CHOP_CHOP, true);
+        return getSensor(SENSOR_TYPE_MMI_CHOP_CHOP);
     }
 
     public Sensor getFlatUpSensor() {
-        return mSensorManager.getDefaultSensor(SENSOR_TYPE_MMI_FLAT_UP, true);
+        return getSensor(SENSOR_TYPE_MMI_FLAT_UP);
     }
 
     public Sensor getFlatDownSensor() {
-        return mSensorManager.getDefaultSensor(SENSOR_TYPE_MMI_FLAT_DOWN, true);
+        return getSensor(SENSOR_TYPE_MMI_FLAT_DOWN);
     }
 
     public Sensor getProximitySensor() {
-        return mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY, true);
+        return getSensor(Sensor.TYPE_PROXIMITY);
     }
 
     public Sensor getStowSensor() {
-        return mSensorManager.getDefaultSensor(SENSOR_TYPE_MMI_STOW, true);
+        return getSensor(SENSOR_TYPE_MMI_STOW);
+    }
+
+    public void registerListener(Gesture owner, Sensor sensor, SensorEventListener listener) {
+        registerListener(owner, sensor, listener, LatencyProfile.BALANCED);
     }
 
-    public void registerListener(Sensor sensor, SensorEventListener listener) {
-        if (!mSensorManager.registerListener(listener, sensor,
-                SensorManager.SENSOR_DELAY_NORMAL, BATCH_LATENCY_IN_MS * 1000)) {
+    /**
+     * Register a listener on behalf of the gesture component owning it, which the sensor's
+     * power cost is accounted to.
+     */
+    public synchronized void registerListener(Gesture owner, Sensor sensor,
+            SensorEventListener listener, LatencyProfile profile) {
+        if (sensor == null) {
             Log.e(TAG, "Failed to registerListener for sensor " + sensor);
+            return;
+        }
+
+        SensorMultiplexer mux = mMultiplexers.get(sensor);
+        if (mux == null) {
+            mux = new SensorMultiplexer(sensor);
+            mMultiplexers.put(sensor, mux);
+        }
+        LatencyProfile previous = mux.getProfile();
+        if (mux.add(owner, listener, profile)) {
+            mPowerAccounting.onRegistered(owner, sensor);
+            if (mux.getProfile() == previous) {
+                // The sensor stays registered as is, so it won't send its initial event again
+                SensorMultiplexer registered = mux;
+                mSensorHandler.post(() -> registered.replay(listener));
+            }
+        }
+        if (mux.getProfile() != previous) {
+            applyProfile(mux);
+        }
+    }
+
+    public synchronized void unregisterListener(SensorEventListener listener) {
+        Iterator<SensorMultiplexer> it = mMultiplexers.values().iterator();
+        while (it.hasNext()) {
+            if (remove(it.next(), listener)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Unregister a listener from one sensor only, keeping its other registrations.
+     */
+    public synchronized void unregisterListener(Sensor sensor, SensorEventListener listener) {
+        SensorMultiplexer mux = mMultiplexers.get(sensor);
+        if (mux != null && remove(mux, listener)) {
+            mMultiplexers.remove(sensor);
+        }
+    }
+
+    /**
+     * @return whether the multiplexer lost its last listener and was unregistered
+     */
+    private boolean remove(SensorMultiplexer mux, SensorEventListener listener) {
+        LatencyProfile previous = mux.getProfile();
+        Gesture owner = mux.remove(listener);
+        if (owner == null) {
+            return false;
+        }
+        mPowerAccounting.onUnregistered(owner, mux.mSensor);
+        if (mux.isEmpty()) {
+            mSensorBackend.unregisterListener(mux);
+            return true;
+        }
+        if (mux.getProfile() != previous) {
+            applyProfile(mux);
+        }
+        return false;
+    }
+
+    /**
+     * The latest event of an on-change sensor while anyone is registered for it, or null. Must
+     * be called from the sensor thread, and the event must not be kept.
+     */
+    public synchronized SensorEvent getLastEvent(Sensor sensor) {
+        SensorMultiplexer mux = mMultiplexers.get(sensor);
+        return mux != null ? mux.mLastEvent : null;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Registered sensors:");
+        for (SensorMultiplexer mux : mMultiplexers.values()) {
+            LatencyProfile profile = mux.getProfile();
+            pw.println("  " + mux.mSensor.getName() + " type=" + mux.mSensor.getType()
+                    + " wakeup=" + mux.mSensor.isWakeUpSensor() + " profile=" + profile
+                    + " samplingPeriod=" + profile.samplingPeriod
+                    + " maxReportLatencyMs=" + profile.maxReportLatencyMs
+                    + " owners=" + mux.mOwners + " events=" + mux.mEventCount);
+        }
+    }
+
+    public SensorTraceRecorder getTraceRecorder() {
+        return mTraceRecorder;
+    }
+
+    /**
+     * Where listeners report that an event changed their state, see
+     * {@link PowerAccounting#onDecision}.
+     */
+    public PowerAccounting getPowerAccounting() {
+        return mPowerAccounting;
+    }
+
+    private void applyProfile(SensorMultiplexer mux) {
+        LatencyProfile profile = mux.getProfile();
+        // A listener can't be re-batched in place, so drop the old registration first
+        mSensorBackend.unregisterListener(mux);
+        if (!mSensorBackend.registerListener(mux, mux.mSensor,
+                profile.samplingPeriod, profile.maxReportLatencyMs * 1000, mSensorHandler)) {
+            Log.e(TAG, "Failed to registerListener for sensor " + mux.mSensor);
         }
     }
 
-    public void unregisterListener(SensorEventListener listener) {
-        mSensorManager.unregisterListener(listener);
+    private class SensorMultiplexer implements SensorEventListener {
+        private final Sensor mSensor;
+        private final List<SensorEventListener> mListeners = new ArrayList<>();
+        private final List<LatencyProfile> mProfiles = new ArrayList<>();
+        private final List<Gesture> mOwners = new ArrayList<>();
+
+        // Snapshots used from the sensor thread, replaced on every change
+        private volatile SensorEventListener[] mDispatch = new SensorEventListener[0];
+        private volatile Gesture[] mDispatchOwners = new Gesture[0];
+
+        private LatencyProfile mProfile;
+
+        // Events delivered since registration, written from the sensor thread only
+        private volatile long mEventCount;
+
+        // Copy of the latest event of an on-change sensor, kept on the sensor thread. Such
+        // sensors only report their current state on registration, so listeners joining later
+        // are sent this one instead.
+        private final boolean mKeepLastEvent;
+        private SensorEvent mLastEvent;
+
+        SensorMultiplexer(Sensor sensor) {
+            mSensor = sensor;
+            mKeepLastEvent = sensor.getReportingMode() == Sensor.REPORTING_MODE_ON_CHANGE;
+        }
+
+        /**
+         * @return whether the listener is new, rather than an update of its profile
+         */
+        boolean add(Gesture owner, SensorEventListener listener, LatencyProfile profile) {
+            int index = mListeners.indexOf(listener);
+            if (index >= 0) {
+                mProfiles.set(index, profile);
+                updateProfile();
+                return false;
+            }
+            mListeners.add(listener);
+            mProfiles.add(profile);
+            mOwners.add(owner);
+            updateDispatch();
+            updateProfile();
+            return true;
+        }
+
+        /**
+         * @return the owner of the removed listener, or null if it was not registered
+         */
+        Gesture remove(SensorEventListener listener) {
+            int index = mListeners.indexOf(listener);
+            if (index < 0) {
+                return null;
+            }
+            mListeners.remove(index);
+            mProfiles.remove(index);
+            Gesture owner = mOwners.remove(index);
+            updateDispatch();
+            updateProfile();
+            return owner;
+        }
+
+        private void updateDispatch() {
+            mDispatch = mListeners.toArray(new SensorEventListener[0]);
+            mDispatchOwners = mOwners.toArray(new Gesture[0]);
+        }
+
+        boolean isEmpty() {
+            return mListeners.isEmpty();
+        }
+
+        LatencyProfile getProfile() {
+            return mProfile;
+        }
+
+        private void updateProfile() {
+            LatencyProfile profile = null;
+            for (LatencyProfile p : mProfiles) {
+                if (profile == null || p.ordinal() < profile.ordinal()) {
+                    profile = p;
+                }
+            }
+            mProfile = profile;
+        }
+
+        /**
+         * Send the latest event to a listener that just joined, unless it left again already.
+         */
+        void replay(SensorEventListener listener) {
+            if (mLastEvent == null) {
+                return;
+            }
+            for (SensorEventListener l : mDispatch) {
+                if (l == listener) {
+                    listener.onSensorChanged(mLastEvent);
+                    return;
+                }
+            }
+        }
+
+        private void keepLastEvent(SensorEvent event) {
+            if (mLastEvent == null) {
+                mLastEvent = new SensorEvent(event.values.length);
+            }
+            mLastEvent.sensor = event.sensor;
+            mLastEvent.accuracy = event.accuracy;
+            mLastEvent.timestamp = event.timestamp;
+            System.arraycopy(event.values, 0, mLastEvent.values, 0,
+                    Math.min(event.values.length, mLastEvent.values.length));
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            mEventCount++;
+            if (mKeepLastEvent) {
+                keepLastEvent(event);
+            }
+            for (Gesture owner : mDispatchOwners) {
+                mPowerAccounting.onEvent(owner, mSensor.getType());
+            }
+            mTraceRecorder.record(event);
+            mPowerAccounting.onEventStart();
+            for (SensorEventListener listener : mDispatch) {
+                listener.onSensorChanged(event);
+            }
+            mPowerAccounting.onEventEnd(mSensor.getType());
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            for (SensorEventListener listener : mDispatch) {
+                listener.onAccuracyChanged(sensor, accuracy);
+            }
+        }
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.hardware.SensorEvent;
+
+import java.io.PrintWriter;
+
+/**
+ * Keeps the most recent sensor events in a fixed-size ring buffer of primitive arrays, so
+ * recording does not allocate. The buffer is exported in the trace format that the replay
+ * tests read: one event per line with the sensor timestamp in nanoseconds, the sensor type and
+ * the event values, separated by whitespace.
+ */
+public class SensorTraceRecorder {
+    private static final int CAPACITY = 1024;
+    private static final int MAX_VALUES = 3;
+
+    private final long[] mTimestamps = new long[CAPACITY];
+    private final int[] mTypes = new int[CAPACITY];
+    private final byte[] mValueCounts = new byte[CAPACITY];
+    private final float[] mValues = new float[CAPACITY * MAX_VALUES];
+
+    private int mNext;
+    private int mSize;
+
+    public synchronized void record(SensorEvent event) {
+        int i = mNext;
+        int count = Math.min(event.values.length, MAX_VALUES);
+        mTimestamps[i] = event.timestamp;
+        mTypes[i] = event.sensor.getType();
+        mValueCounts[i] = (byte) count;
+        System.arraycopy(event.values, 0, mValues, i * MAX_VALUES, count);
+
+        mNext = (i + 1) % CAPACITY;
+        if (mSize < CAPACITY) {
+            mSize++;
+        }
+    }
+
+    public synchronized void clear() {
+        mNext = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Write the buffered events, oldest first, one per line.
+     */
+    public synchronized void export(PrintWriter pw) {
+        pw.println("# timestamp_ns sensor_type values...");
+        int first = (mNext - mSize + CAPACITY) % CAPACITY;
+        for (int n = 0; n < mSize; n++) {
+            int i = (first + n) % CAPACITY;
+            pw.print(mTimestamps[i]);
+            pw.print(' ');
+            pw.print(mTypes[i]);
+            for (int v = 0; v < mValueCounts[i]; v++) {
+                pw.print(' ');
+                pw.print(mValues[i * MAX_VALUES + v]);
+            }
+            pw.println();
+        }
+    }
+}
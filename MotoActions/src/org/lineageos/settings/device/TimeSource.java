@@ -1,6 +1,5 @@
 /*
- * Copyright (c) 2015 The CyanogenMod Project
- * Copyright (c) 2017-2022 The LineageOS Project
+ * Copyright (c) 2026 The LineageOS Project
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,8 +14,16 @@
  * limitations under the License.
  */
 
-package org.lineageos.settings.device.actions;
+package org.lineageos.settings.device;
 
-public interface UpdatedStateNotifier {
-    void updateState();
+import android.os.SystemClock;
+
+/**
+ * Monotonic time in nanoseconds, on the same base as SensorEvent.timestamp. Gesture timing
+ * compares against this instead of wall-clock time so NTP or timezone changes can't affect it.
+ */
+public interface TimeSource {
+    TimeSource SYSTEM = SystemClock::elapsedRealtimeNanos;
+
+    long elapsedRealtimeNanos();
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Short, reference-counted wakelock taken only while a gesture is being handled after a
+ * wakeup sensor fired. Hold time is accounted per gesture.
+ */
+public class WakeLockManager {
+    private static final String TAG = "MotoActions";
+
+    // Upper bound for a hold since the last acquire, in case a release is missed
+    private static final long MAX_HOLD_MS = 3000;
+
+    private final PowerManager.WakeLock mWakeLock;
+
+    private final int[] mRefCount = new int[Gesture.COUNT];
+    private final long[] mHoldStartMs = new long[Gesture.COUNT];
+    private final long[] mHeldTimeMs = new long[Gesture.COUNT];
+    private final int[] mAcquireCount = new int[Gesture.COUNT];
+
+    private int mTotalRefCount;
+
+    public WakeLockManager(Context context) {
+        PowerManager powerManager = context.getSystemService(PowerManager.class);
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                TAG + ":GestureWakeLock");
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    public synchronized void acquire(Gesture gesture) {
+        int i = gesture.ordinal();
+        if (mRefCount[i]++ == 0) {
+            mHoldStartMs[i] = SystemClock.elapsedRealtime();
+            mAcquireCount[i]++;
+        }
+        mTotalRefCount++;
+        // Renews the timeout, so a long burst of gestures keeps the lock for its later holders
+        mWakeLock.acquire(MAX_HOLD_MS);
+    }
+
+    public synchronized void release(Gesture gesture) {
+        int i = gesture.ordinal();
+        if (mRefCount[i] == 0) {
+            return;
+        }
+        if (--mRefCount[i] == 0) {
+            mHeldTimeMs[i] += SystemClock.elapsedRealtime() - mHoldStartMs[i];
+        }
+        if (--mTotalRefCount == 0 && mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+
+    public synchronized boolean isHeld() {
+        return mWakeLock.isHeld();
+    }
+
+    public synchronized long getHeldTimeMs(Gesture gesture) {
+        int i = gesture.ordinal();
+        long held = mHeldTimeMs[i];
+        if (mRefCount[i] > 0) {
+            held += SystemClock.elapsedRealtime() - mHoldStartMs[i];
+        }
+        return held;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Wakelock: held=" + mWakeLock.isHeld() + " refCount=" + mTotalRefCount);
+        for (Gesture gesture : Gesture.values()) {
+            pw.println("  " + gesture + ": acquired=" + mAcquireCount[gesture.ordinal()]
+                    + " heldMs=" + getHeldTimeMs(gesture));
+        }
+    }
+}
@@ -19,67 +19,126 @@ package org.lineageos.settings.device.actions;
 
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.os.Handler;
 import android.util.Log;
 
+import org.lineageos.settings.device.Gesture;
+import org.lineageos.settings.device.GestureDispatcher;
+import org.lineageos.settings.device.GestureEventBus;
+import org.lineageos.settings.device.GestureEventBus.Topic;
+import org.lineageos.settings.device.GestureRule;
 import org.lineageos.settings.device.MotoActionsSettings;
 import org.lineageos.settings.device.SensorHelper;
+import org.lineageos.settings.device.SensorHelper.LatencyProfile;
 
-public class ChopChopSensor implements SensorEventListener, UpdatedStateNotifier {
+import java.io.PrintWriter;
+
+public class ChopChopSensor implements GestureEventBus.Subscriber, GestureRule.Callback {
     private static final String TAG = "MotoActions-ChopChopSensor";
 
+    // Chops only count while the device is out of the pocket
+    private static final int STATE_STOWED = 0;
+    private static final int STATE_ARMED = 1;
+    private static final int STATE_COUNT = 2;
+
+    private static final int OUTCOME_TORCH = 0;
+    private static final int OUTCOME_ARM = 1;
+    private static final int OUTCOME_DISARM = 2;
+
     private final MotoActionsSettings mMotoActionsSettings;
     private final SensorHelper mSensorHelper;
+    private final GestureDispatcher mGestureDispatcher;
+    private final Handler mActionHandler;
     private final Sensor mSensor;
     private final Sensor mProx;
+    private final Sensor mStow;
+    private final Runnable mTorchToggle;
+    private final Runnable mPrewarm;
+    private final GestureRule mRule;
+    private final int mCoveredSignal;
 
-    private boolean mIsEnabled;
-    private boolean mProxIsCovered;
+    private volatile boolean mIsEnabled;
+    private boolean mIsArmed;
 
-    public ChopChopSensor(MotoActionsSettings motoActionsSettings, SensorHelper sensorHelper) {
+    public ChopChopSensor(MotoActionsSettings motoActionsSettings, SensorHelper sensorHelper,
+                          GestureDispatcher gestureDispatcher) {
         mMotoActionsSettings = motoActionsSettings;
         mSensorHelper = sensorHelper;
+        mGestureDispatcher = gestureDispatcher;
+        mActionHandler = new Handler(gestureDispatcher.getLooper());
         mSensor = sensorHelper.getChopChopSensor();
         mProx = sensorHelper.getProximitySensor();
+        mStow = sensorHelper.getStowSensor();
+        mTorchToggle = motoActionsSettings::chopChopAction;
+        mPrewarm = motoActionsSettings::prewarmTorch;
+
+        GestureRule.Builder rule = new GestureRule.Builder(TAG, STATE_COUNT);
+        int chop = rule.signal(mSensor, GestureRule.ANY);
+        int covered = rule.signal(mProx, GestureRule.BELOW,
+                mProx != null ? mProx.getMaximumRange() : 0);
+        mCoveredSignal = covered;
+        int stowed = rule.signal(mStow, GestureRule.NONZERO);
+        rule.on(STATE_STOWED, stowed, false).to(STATE_ARMED).fire(OUTCOME_ARM);
+        rule.on(STATE_ARMED, stowed, true).to(STATE_STOWED).fire(OUTCOME_DISARM);
+        rule.on(STATE_ARMED, chop, true).when(covered, false).fire(OUTCOME_TORCH);
+        if (mStow == null) {
+            // Without stow detection, chops are only gated by proximity
+            rule.on(STATE_STOWED, chop, true).when(covered, false).fire(OUTCOME_TORCH);
+        }
+        mRule = rule.build(this, sensorHelper.getPowerAccounting());
     }
 
     @Override
-    public synchronized void updateState() {
+    public void onStateChanged(Topic topic) {
         if (mMotoActionsSettings.isChopChopGestureEnabled() && !mIsEnabled) {
             Log.d(TAG, "Enabling");
-            mSensorHelper.registerListener(mSensor, this);
-            mSensorHelper.registerListener(mProx, mProxListener);
             mIsEnabled = true;
+            mSensorHelper.registerListener(Gesture.CHOP_CHOP, mSensor, mRule,
+                    LatencyProfile.LOW_LATENCY);
+            if (mStow != null) {
+                // Proximity follows once the stow sensor reports the device out of the pocket.
+                // Arming only has to happen before a chop, so stow events may be batched.
+                mSensorHelper.registerListener(Gesture.CHOP_CHOP, mStow, mRule,
+                        LatencyProfile.BALANCED);
+            } else {
+                mSensorHelper.registerListener(Gesture.CHOP_CHOP, mProx, mRule,
+                        LatencyProfile.LOW_LATENCY);
+            }
         } else if (!mMotoActionsSettings.isChopChopGestureEnabled() && mIsEnabled) {
             Log.d(TAG, "Disabling");
-            mSensorHelper.unregisterListener(this);
-            mSensorHelper.unregisterListener(mProxListener);
             mIsEnabled = false;
+            mSensorHelper.unregisterListener(mRule);
+            mSensorHelper.getHandler().post(() -> {
+                mRule.reset();
+                mIsArmed = false;
+            });
         }
     }
 
     @Override
-    public void onSensorChanged(SensorEvent event) {
-        Log.d(TAG, "chop chop triggered");
-        if (mProxIsCovered) {
-            Log.d(TAG, "proximity sensor covered, ignoring chop-chop");
-            return;
+    public void onRuleFired(int outcome, long timestampNs) {
+        if (outcome == OUTCOME_TORCH) {
+            mGestureDispatcher.dispatch(Gesture.CHOP_CHOP, "torch", timestampNs, mTorchToggle);
+        } else if (outcome == OUTCOME_ARM && mIsEnabled) {
+            mSensorHelper.registerListener(Gesture.CHOP_CHOP, mProx, mRule,
+                    LatencyProfile.LOW_LATENCY);
+            // If others already listen to proximity, its state only follows behind chops
+            // queued right now, so start from the last known one
+            SensorEvent last = mSensorHelper.getLastEvent(mProx);
+            if (last != null) {
+                mRule.seed(last);
+            }
+            mIsArmed = true;
+            mActionHandler.post(mPrewarm);
+        } else if (outcome == OUTCOME_DISARM && mIsArmed) {
+            mSensorHelper.unregisterListener(mProx, mRule);
+            mRule.forget(mCoveredSignal);
+            mIsArmed = false;
         }
-        mMotoActionsSettings.chopChopAction();
     }
 
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    public void dump(PrintWriter pw) {
+        pw.println("  ChopChopSensor: enabled=" + mMotoActionsSettings.isChopChopGestureEnabled()
+                + " armed=" + mIsEnabled + " proximity=" + mIsArmed + " " + mRule);
     }
-
-    private final SensorEventListener mProxListener = new SensorEventListener() {
-        @Override
-        public synchronized void onSensorChanged(SensorEvent event) {
-            mProxIsCovered = event.values[0] < mProx.getMaximumRange();
-        }
-
-        @Override
-        public void onAccuracyChanged(Sensor mSensor, int accuracy) {
-        }
-    };
 }
@@ -23,103 +23,120 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.util.Log;
 
+import org.lineageos.settings.device.Gesture;
+import org.lineageos.settings.device.GestureDispatcher;
+import org.lineageos.settings.device.GestureEventBus;
+import org.lineageos.settings.device.GestureEventBus.Topic;
+import org.lineageos.settings.device.GestureRule;
 import org.lineageos.settings.device.MotoActionsSettings;
 import org.lineageos.settings.device.SensorHelper;
+import org.lineageos.settings.device.SensorHelper.LatencyProfile;
 
-public class FlipToMute implements UpdatedStateNotifier {
+import java.io.PrintWriter;
+
+public class FlipToMute implements GestureEventBus.Subscriber, GestureRule.Callback {
     private static final String TAG = "MotoActions-FlipToMute";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final int STATE_NORMAL = 0;
+    private static final int STATE_MUTED = 1;
+    private static final int STATE_COUNT = 2;
+
+    private static final int OUTCOME_PRIORITY = 0;
+    private static final int OUTCOME_RESTORE = 1;
 
     private final NotificationManager mNotificationManager;
     private final MotoActionsSettings mMotoActionsSettings;
     private final SensorHelper mSensorHelper;
+    private final GestureDispatcher mGestureDispatcher;
     private final Sensor mFlatDown;
     private final Sensor mStow;
     private final Receiver mReceiver;
+    private final Runnable mAllowPriority;
+    private final Runnable mRestoreFilter;
+    private final GestureRule mRule;
+    private final int mFlatDownSignal;
+    private final int mStowedSignal;
 
     private boolean mIsEnabled;
-    private boolean mIsFlatDown;
-    private boolean mIsStowed;
-    private int mFilter;
+    private volatile int mFilter;
     private final Context mContext;
 
     public FlipToMute(MotoActionsSettings motoActionsSettings, Context context,
-                      SensorHelper sensorHelper) {
+                      SensorHelper sensorHelper, GestureDispatcher gestureDispatcher) {
         mMotoActionsSettings = motoActionsSettings;
         mContext = context;
         mSensorHelper = sensorHelper;
+        mGestureDispatcher = gestureDispatcher;
         mFlatDown = sensorHelper.getFlatDownSensor();
         mStow = sensorHelper.getStowSensor();
         mNotificationManager = context.getSystemService(NotificationManager.class);
         mFilter = mNotificationManager.getCurrentInterruptionFilter();
         mReceiver = new Receiver();
+        mAllowPriority = () -> mNotificationManager.setInterruptionFilter(
+                NotificationManager.INTERRUPTION_FILTER_PRIORITY);
+        mRestoreFilter = () -> mNotificationManager.setInterruptionFilter(mFilter);
+
+        GestureRule.Builder rule = new GestureRule.Builder(TAG, STATE_COUNT);
+        mFlatDownSignal = rule.signal(mFlatDown, GestureRule.NONZERO);
+        mStowedSignal = rule.signal(mStow, GestureRule.NONZERO);
+        rule.on(STATE_NORMAL, mFlatDownSignal, true).when(mStowedSignal, true)
+                .to(STATE_MUTED).fire(OUTCOME_PRIORITY);
+        rule.on(STATE_NORMAL, mStowedSignal, true).when(mFlatDownSignal, true)
+                .to(STATE_MUTED).fire(OUTCOME_PRIORITY);
+        rule.on(STATE_MUTED, mFlatDownSignal, false).to(STATE_NORMAL).fire(OUTCOME_RESTORE);
+        mRule = rule.build(this, sensorHelper.getPowerAccounting());
     }
 
     @Override
-    public void updateState() {
+    public void onStateChanged(Topic topic) {
         if (mMotoActionsSettings.isFlipToMuteEnabled() && !mIsEnabled) {
             Log.d(TAG, "Enabling");
-            mSensorHelper.registerListener(mFlatDown, mFlatDownListener);
-            mSensorHelper.registerListener(mStow, mStowListener);
+            mSensorHelper.registerListener(Gesture.FLIP_TO_MUTE, mFlatDown, mRule,
+                    LatencyProfile.BALANCED);
+            mSensorHelper.registerListener(Gesture.FLIP_TO_MUTE, mStow, mRule,
+                    LatencyProfile.BALANCED);
             mContext.registerReceiver(mReceiver,
-                    new IntentFilter(NotificationManager.ACTION_INTERRUPTION_FILTER_CHANGED));
+                    new IntentFilter(NotificationManager.ACTION_INTERRUPTION_FILTER_CHANGED),
+                    null, mSensorHelper.getHandler());
             mIsEnabled = true;
         } else if (!mMotoActionsSettings.isFlipToMuteEnabled() && mIsEnabled) {
             Log.d(TAG, "Disabling");
-            mSensorHelper.unregisterListener(mFlatDownListener);
-            mSensorHelper.unregisterListener(mStowListener);
+            mSensorHelper.unregisterListener(mRule);
+            mSensorHelper.getHandler().post(mRule::reset);
             mContext.unregisterReceiver(mReceiver);
             mIsEnabled = false;
         }
     }
 
-    private final SensorEventListener mFlatDownListener = new SensorEventListener() {
-        @Override
-        public synchronized void onSensorChanged(SensorEvent event) {
-            mIsFlatDown = (event.values[0] != 0);
-            sensorChange();
-        }
-
-        @Override
-        public void onAccuracyChanged(Sensor mSensor, int accuracy) {
-        }
-    };
-
-    private final SensorEventListener mStowListener = new SensorEventListener() {
-        @Override
-        public synchronized void onSensorChanged(SensorEvent event) {
-            mIsStowed = (event.values[0] != 0);
-            sensorChange();
-        }
-
-        @Override
-        public void onAccuracyChanged(Sensor mSensor, int accuracy) {
-        }
-    };
-
-    private void sensorChange() {
-        Log.d(TAG, "event: " + mIsFlatDown + " mIsStowed=" + mIsStowed);
-
-        if (mIsFlatDown && mIsStowed) {
-            mNotificationManager.setInterruptionFilter(
-                    NotificationManager.INTERRUPTION_FILTER_PRIORITY);
-            Log.d(TAG, "Interrupt filter: Allow priority");
-        } else if (!mIsFlatDown) {
-            mNotificationManager.setInterruptionFilter(mFilter);
-            Log.d(TAG, "Interrupt filter: Restore");
+    @Override
+    public void onRuleFired(int outcome, long timestampNs) {
+        if (outcome == OUTCOME_PRIORITY) {
+            mGestureDispatcher.dispatch(Gesture.FLIP_TO_MUTE, "priority", timestampNs,
+                    mAllowPriority);
+            if (DEBUG) Log.d(TAG, "Interrupt filter: Allow priority");
+        } else {
+            // The rule already left the muted state, a dropped restore would never be retried
+            mGestureDispatcher.dispatchUnlimited(Gesture.FLIP_TO_MUTE, "restore", timestampNs,
+                    mRestoreFilter);
+            if (DEBUG) Log.d(TAG, "Interrupt filter: Restore");
         }
     }
 
     public class Receiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            if (!mIsFlatDown && !mIsStowed) {
+            if (!mRule.isHigh(mFlatDownSignal) && !mRule.isHigh(mStowedSignal)) {
                 mFilter = mNotificationManager.getCurrentInterruptionFilter();
-                Log.d(TAG, "Interrupt filter: Backup");
+                if (DEBUG) Log.d(TAG, "Interrupt filter: Backup");
             }
         }
     }
+
+    public void dump(PrintWriter pw) {
+        pw.println("  FlipToMute: enabled=" + mMotoActionsSettings.isFlipToMuteEnabled()
+                + " armed=" + mIsEnabled + " " + mRule);
+    }
 }
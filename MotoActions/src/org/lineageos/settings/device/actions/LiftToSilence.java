@@ -19,92 +19,94 @@ package org.lineageos.settings.device.actions;
 
 import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.telecom.TelecomManager;
-import android.telephony.PhoneStateListener;
-import android.telephony.TelephonyManager;
-import android.util.Log;
 
+import org.lineageos.settings.device.CallStateTracker;
+import org.lineageos.settings.device.Gesture;
+import org.lineageos.settings.device.GestureDispatcher;
+import org.lineageos.settings.device.GestureEventBus;
+import org.lineageos.settings.device.GestureEventBus.Topic;
+import org.lineageos.settings.device.GestureRule;
 import org.lineageos.settings.device.MotoActionsSettings;
+import org.lineageos.settings.device.PickUpRule;
+import org.lineageos.settings.device.SensorEventMerger;
 import org.lineageos.settings.device.SensorHelper;
+import org.lineageos.settings.device.SensorHelper.LatencyProfile;
+import org.lineageos.settings.device.WakeLockManager;
 
-public class LiftToSilence extends PhoneStateListener implements SensorEventListener,
-        UpdatedStateNotifier {
+import java.io.PrintWriter;
+
+public class LiftToSilence implements GestureEventBus.Subscriber, CallStateTracker.Listener,
+        GestureRule.Callback {
     private static final String TAG = "MotoActions-LiftToSilence";
 
     private final MotoActionsSettings mMotoActionsSettings;
     private final SensorHelper mSensorHelper;
+    private final GestureDispatcher mGestureDispatcher;
     private final Sensor mFlatUpSensor;
     private final Sensor mStowSensor;
+    private final GestureRule mRule;
+    private final SensorEventMerger mMerger;
 
     private final TelecomManager mTelecomManager;
-    private final TelephonyManager mTelephonyManager;
+    private final CallStateTracker mCallStateTracker;
+    private final Runnable mSilenceRinger;
 
     private boolean mIsRinging;
-    private boolean mIsStowed;
-    private boolean mLastFlatUp;
 
     public LiftToSilence(MotoActionsSettings motoActionsSettings, Context context,
-                         SensorHelper sensorHelper) {
+                         SensorHelper sensorHelper, WakeLockManager wakeLockManager,
+                         GestureDispatcher gestureDispatcher,
+                         CallStateTracker callStateTracker) {
         mMotoActionsSettings = motoActionsSettings;
         mSensorHelper = sensorHelper;
+        mGestureDispatcher = gestureDispatcher;
         mFlatUpSensor = sensorHelper.getFlatUpSensor();
         mStowSensor = sensorHelper.getStowSensor();
         mTelecomManager = (TelecomManager) context.getSystemService(Context.TELECOM_SERVICE);
-        mTelephonyManager = context.getSystemService(TelephonyManager.class);
+        mCallStateTracker = callStateTracker;
+        mSilenceRinger = mTelecomManager::silenceRinger;
+
+        mRule = PickUpRule.build(TAG, sensorHelper, this);
+        mMerger = new SensorEventMerger(sensorHelper, wakeLockManager,
+                Gesture.LIFT_TO_SILENCE, LatencyProfile.LOW_LATENCY, mRule);
     }
 
     @Override
-    public void updateState() {
+    public void onStateChanged(Topic topic) {
         if (mMotoActionsSettings.isLiftToSilenceEnabled()) {
-            mTelephonyManager.listen(this, LISTEN_CALL_STATE);
+            mCallStateTracker.addListener(this);
         } else {
-            mTelephonyManager.listen(this, 0);
+            mCallStateTracker.removeListener(this);
         }
     }
 
     @Override
-    public synchronized void onCallStateChanged(int state, String incomingNumber) {
-        if (state == TelephonyManager.CALL_STATE_RINGING && !mIsRinging) {
-            Log.d(TAG, "Ringing started");
-            mSensorHelper.registerListener(mFlatUpSensor, this);
-            mSensorHelper.registerListener(mStowSensor, mStowListener);
-            mIsRinging = true;
-        } else if (state != TelephonyManager.CALL_STATE_RINGING && mIsRinging) {
-            Log.d(TAG, "Ringing stopped");
-            mSensorHelper.unregisterListener(this);
-            mSensorHelper.unregisterListener(mStowListener);
-            mIsRinging = false;
-        }
+    public void onRingingStarted(long ringStartedNs) {
+        mMerger.register(mFlatUpSensor);
+        mMerger.register(mStowSensor);
+        mIsRinging = true;
     }
 
-
     @Override
-    public synchronized void onSensorChanged(SensorEvent event) {
-        boolean thisFlatUp = (event.values[0] != 0);
-
-        Log.d(TAG, "event: " + thisFlatUp + " mLastFlatUp=" + mLastFlatUp + " mIsStowed=" +
-                mIsStowed);
-
-        if (mLastFlatUp && !thisFlatUp && !mIsStowed) {
-            mTelecomManager.silenceRinger();
-        }
-        mLastFlatUp = thisFlatUp;
+    public void onRingingStopped() {
+        mSensorHelper.unregisterListener(mMerger);
+        mMerger.reset();
+        mRule.reset();
+        mIsRinging = false;
     }
 
     @Override
-    public void onAccuracyChanged(Sensor mSensor, int accuracy) {
-    }
-
-    private final SensorEventListener mStowListener = new SensorEventListener() {
-        @Override
-        public synchronized void onSensorChanged(SensorEvent event) {
-            mIsStowed = (event.values[0] != 0);
+    public void onRuleFired(int outcome, long timestampNs) {
+        if (outcome != PickUpRule.OUTCOME_PICK_UP) {
+            return;
         }
+        mGestureDispatcher.dispatch(Gesture.LIFT_TO_SILENCE, "silence", timestampNs,
+                mSilenceRinger);
+    }
 
-        @Override
-        public void onAccuracyChanged(Sensor mSensor, int accuracy) {
-        }
-    };
+    public void dump(PrintWriter pw) {
+        pw.println("  LiftToSilence: enabled=" + mMotoActionsSettings.isLiftToSilenceEnabled()
+                + " armed=" + mIsRinging + " " + mRule + " late=" + mMerger.getLateCount());
+    }
 }
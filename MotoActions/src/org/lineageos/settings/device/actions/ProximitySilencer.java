@@ -17,94 +17,119 @@
 
 package org.lineageos.settings.device.actions;
 
-import static android.telephony.TelephonyManager.CALL_STATE_RINGING;
-
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.telecom.TelecomManager;
-import android.telephony.PhoneStateListener;
-import android.telephony.TelephonyManager;
 import android.util.Log;
 
+import org.lineageos.settings.device.CallStateTracker;
+import org.lineageos.settings.device.Gesture;
+import org.lineageos.settings.device.GestureDispatcher;
+import org.lineageos.settings.device.GestureEventBus;
+import org.lineageos.settings.device.GestureEventBus.Topic;
 import org.lineageos.settings.device.MotoActionsSettings;
 import org.lineageos.settings.device.SensorHelper;
+import org.lineageos.settings.device.SensorHelper.LatencyProfile;
+
+import java.io.PrintWriter;
 
-public class ProximitySilencer extends PhoneStateListener implements SensorEventListener,
-        UpdatedStateNotifier {
+public class ProximitySilencer implements SensorEventListener, GestureEventBus.Subscriber,
+        CallStateTracker.Listener {
     private static final String TAG = "MotoActions-ProximitySilencer";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
 
-    private static final int SILENCE_DELAY_MS = 500;
+    private static final long SILENCE_DELAY_NS = 500L * 1000 * 1000;
 
     private final TelecomManager mTelecomManager;
-    private final TelephonyManager mTelephonyManager;
+    private final CallStateTracker mCallStateTracker;
     private final MotoActionsSettings mMotoActionsSettings;
     private final SensorHelper mSensorHelper;
+    private final GestureDispatcher mGestureDispatcher;
+    private final Runnable mSilenceRinger;
     private final Sensor mSensor;
     private boolean mIsRinging;
-    private long mRingStartedMs;
+    private long mRingStartedNs;
     private boolean mCoveredRinging;
 
     public ProximitySilencer(MotoActionsSettings motoActionsSettings, Context context,
-                             SensorHelper sensorHelper) {
+                             SensorHelper sensorHelper, GestureDispatcher gestureDispatcher,
+                             CallStateTracker callStateTracker) {
         mTelecomManager = (TelecomManager) context.getSystemService(Context.TELECOM_SERVICE);
-        mTelephonyManager = context.getSystemService(TelephonyManager.class);
+        mCallStateTracker = callStateTracker;
 
         mMotoActionsSettings = motoActionsSettings;
         mSensorHelper = sensorHelper;
+        mGestureDispatcher = gestureDispatcher;
+        mSilenceRinger = mTelecomManager::silenceRinger;
         mSensor = sensorHelper.getProximitySensor();
         mCoveredRinging = false;
         mIsRinging = false;
     }
 
     @Override
-    public void updateState() {
+    public void onStateChanged(Topic topic) {
         if (mMotoActionsSettings.isIrSilencerEnabled()) {
-            mTelephonyManager.listen(this, LISTEN_CALL_STATE);
+            mCallStateTracker.addListener(this);
         } else {
-            mTelephonyManager.listen(this, 0);
+            mCallStateTracker.removeListener(this);
         }
     }
 
     @Override
-    public synchronized void onSensorChanged(SensorEvent event) {
+    public void onSensorChanged(SensorEvent event) {
         boolean isNear = event.values[0] < mSensor.getMaximumRange();
-        long now = System.currentTimeMillis();
+        // Sensor timestamps share the elapsedRealtimeNanos() base, and stay correct when
+        // events arrive batched
+        long now = event.timestamp;
 
         if (isNear) {
-            mCoveredRinging = mIsRinging && (now - mRingStartedMs >= SILENCE_DELAY_MS);
+            boolean covered = mIsRinging && (now - mRingStartedNs >= SILENCE_DELAY_NS);
+            if (covered != mCoveredRinging) {
+                mCoveredRinging = covered;
+                mSensorHelper.getPowerAccounting().onDecision();
+            }
             return;
         }
 
         if (mIsRinging) {
-            Log.d(TAG, "event: " + event.values[0] + ", " + " covered " + mCoveredRinging);
+            if (DEBUG) {
+                Log.d(TAG, "event: " + event.values[0] + ", " + " covered " + mCoveredRinging);
+            }
             if (mCoveredRinging) {
-                Log.d(TAG, "Silencing ringer");
-                mTelecomManager.silenceRinger();
-            } else {
+                if (DEBUG) Log.d(TAG, "Silencing ringer");
+                mSensorHelper.getPowerAccounting().onDecision();
+                mGestureDispatcher.dispatch(Gesture.PROXIMITY_SILENCER, "silence",
+                        event.timestamp, mSilenceRinger);
+            } else if (DEBUG) {
                 Log.d(TAG, "Ignoring silence gesture: " + now + " is too close to " +
-                        mRingStartedMs + ", delay=" + SILENCE_DELAY_MS);
+                        mRingStartedNs + ", delay=" + SILENCE_DELAY_NS);
             }
             mCoveredRinging = false;
         }
     }
 
     @Override
-    public synchronized void onCallStateChanged(int state, String incomingNumber) {
-        if (state == CALL_STATE_RINGING && !mIsRinging) {
-            Log.d(TAG, "Ringing started");
-            mSensorHelper.registerListener(mSensor, this);
-            mIsRinging = true;
-            mRingStartedMs = System.currentTimeMillis();
-        } else if (state != CALL_STATE_RINGING && mIsRinging) {
-            Log.d(TAG, "Ringing stopped");
-            mSensorHelper.unregisterListener(this);
-            mIsRinging = false;
-        }
+    public void onRingingStarted(long ringStartedNs) {
+        mSensorHelper.registerListener(Gesture.PROXIMITY_SILENCER, mSensor, this,
+                LatencyProfile.LOW_LATENCY);
+        mIsRinging = true;
+        mRingStartedNs = ringStartedNs;
+    }
+
+    @Override
+    public void onRingingStopped() {
+        mSensorHelper.unregisterListener(this);
+        mIsRinging = false;
     }
 
     @Override
     public void onAccuracyChanged(Sensor mSensor, int accuracy) {
     }
+
+    public void dump(PrintWriter pw) {
+        pw.println("  ProximitySilencer: enabled=" + mMotoActionsSettings.isIrSilencerEnabled()
+                + " armed=" + mIsRinging + " covered=" + mCoveredRinging);
+    }
 }
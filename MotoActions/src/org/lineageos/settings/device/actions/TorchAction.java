@@ -21,39 +21,69 @@ import android.content.Context;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
 
 import org.lineageos.settings.device.SensorAction;
 
 public class TorchAction implements SensorAction {
-    private static boolean mTorchEnabled;
-
     private final CameraManager mCameraManager;
     private final Vibrator mVibrator;
+    private final Handler mHandler;
+    private final MyTorchCallback mTorchCallback = new MyTorchCallback();
+
+    private final String mRearCameraId;
 
-    private String mRearCameraId;
+    private volatile boolean mTorchEnabled;
+    private boolean mWarm;
 
+    /**
+     * Must be created on a looper thread, which then makes all calls and receives the torch
+     * callbacks.
+     */
     public TorchAction(Context mContext) {
         mCameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
-        mCameraManager.registerTorchCallback(new MyTorchCallback(), null);
         mVibrator = (Vibrator) mContext.getSystemService(Context.VIBRATOR_SERVICE);
+        mHandler = new Handler(Looper.myLooper());
+        mRearCameraId = findRearFlashCameraId();
+    }
+
+    /**
+     * Start tracking the torch state ahead of the first toggle. Registering the callback
+     * reports the current state asynchronously, so this has to happen before the chop to toggle
+     * correctly and without delay. The callback then stays registered, it costs nothing while
+     * the torch is idle and keeps up with toggles from elsewhere, such as the QS tile.
+     */
+    public void prewarm() {
+        if (mRearCameraId != null && !mWarm) {
+            mCameraManager.registerTorchCallback(mTorchCallback, mHandler);
+            mWarm = true;
+        }
+    }
+
+    private String findRearFlashCameraId() {
         try {
             for (final String cameraId : mCameraManager.getCameraIdList()) {
                 CameraCharacteristics characteristics =
                         mCameraManager.getCameraCharacteristics(cameraId);
-                int cOrientation = characteristics.get(CameraCharacteristics.LENS_FACING);
-                if (cOrientation == CameraCharacteristics.LENS_FACING_BACK) {
-                    mRearCameraId = cameraId;
-                    break;
+                Integer cOrientation = characteristics.get(CameraCharacteristics.LENS_FACING);
+                Boolean flashAvailable =
+                        characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+                if (cOrientation != null && cOrientation == CameraCharacteristics.LENS_FACING_BACK
+                        && Boolean.TRUE.equals(flashAvailable)) {
+                    return cameraId;
                 }
             }
         } catch (CameraAccessException ignored) {
         }
+        return null;
     }
 
     @Override
     public void action() {
+        prewarm();
         mVibrator.vibrate(VibrationEffect.createOneShot(250, VibrationEffect.DEFAULT_AMPLITUDE));
         if (mRearCameraId != null) {
             try {
@@ -19,50 +19,139 @@ package org.lineageos.settings.device.doze;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Log;
 
-import org.lineageos.settings.device.SensorAction;
+import org.lineageos.settings.device.ActionLimiter;
+import org.lineageos.settings.device.Gesture;
+import org.lineageos.settings.device.GestureDispatcher;
+import org.lineageos.settings.device.GestureEventBus;
+import org.lineageos.settings.device.GestureEventBus.Topic;
+import org.lineageos.settings.device.TimeSource;
+import org.lineageos.settings.device.WakeLockManager;
 
-public class DozePulseAction implements SensorAction, ScreenStateNotifier {
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asks SystemUI to pulse the doze display. Requests are queued to a worker, and all requests
+ * pending when it gets to them are answered with a single broadcast.
+ */
+public class DozePulseAction implements GestureEventBus.Subscriber, Handler.Callback {
     private static final String TAG = "MotoActions";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final long DELAY_BETWEEN_DOZES_MS = 1500;
 
-    private static final int DELAY_BETWEEN_DOZES_IN_MS = 1500;
+    private static final int MSG_PULSE = 1;
+
+    private static final Gesture[] GESTURES = Gesture.values();
 
     private final Context mContext;
+    private final TimeSource mTimeSource;
+    private final WakeLockManager mWakeLockManager;
+    private final GestureDispatcher mGestureDispatcher;
+    private final Handler mHandler;
+    private final Intent mPulseIntent = new Intent("com.android.systemui.doze.pulse");
+
+    // Shared by all gestures that pulse
+    private final ActionLimiter mLimiter =
+            new ActionLimiter(DELAY_BETWEEN_DOZES_MS, 0, 0, false);
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
 
-    private long mLastDoze;
+    // Worker state, the oldest pending request of the current batch and the event timestamp
+    // of the oldest request per gesture, or 0
+    private long mBatchStartMs;
+    private final long[] mBatchTimestamps = new long[Gesture.COUNT];
 
-    public DozePulseAction(Context context) {
+    private volatile int mRequests;
+    private volatile int mBroadcasts;
+    private volatile long mLastLatencyMs;
+    private volatile long mMaxLatencyMs;
+
+    /**
+     * Pulses are queued on the dispatcher's action thread, behind the actions requesting them.
+     */
+    public DozePulseAction(Context context, TimeSource timeSource,
+                           WakeLockManager wakeLockManager, GestureDispatcher gestureDispatcher) {
         mContext = context;
+        mTimeSource = timeSource;
+        mWakeLockManager = wakeLockManager;
+        mGestureDispatcher = gestureDispatcher;
+        mHandler = new Handler(gestureDispatcher.getLooper(), this);
     }
 
-    @Override
-    public void screenTurnedOn() {
+    public ActionLimiter getLimiter() {
+        return mLimiter;
     }
 
     @Override
-    public void screenTurnedOff() {
-        mLastDoze = System.currentTimeMillis();
+    public void onStateChanged(Topic topic) {
+        if (topic == Topic.SCREEN_OFF) {
+            mLimiter.holdOff(mTimeSource.elapsedRealtimeNanos());
+        }
     }
 
-    public void action() {
-        if (mayDoze()) {
-            Log.d(TAG, "Sending doze.pulse intent");
-            Intent pulseIntent = new Intent("com.android.systemui.doze.pulse");
-            mContext.sendBroadcastAsUser(pulseIntent, UserHandle.CURRENT);
+    /**
+     * Queue a pulse on behalf of a gesture, keeping its wakelock until the broadcast is sent.
+     * Must be called from a running gesture action.
+     */
+    public void pulse(Gesture gesture) {
+        long timestampNs = mGestureDispatcher.deferCompletion();
+        if (mBatchTimestamps[gesture.ordinal()] == 0) {
+            mBatchTimestamps[gesture.ordinal()] = timestampNs;
         }
+        mWakeLockManager.acquire(gesture);
+        mQueueDepth.incrementAndGet();
+        mHandler.obtainMessage(MSG_PULSE, gesture.ordinal(), 0).sendToTarget();
     }
 
-    public synchronized boolean mayDoze() {
-        long now = System.currentTimeMillis();
-        if (now - mLastDoze > DELAY_BETWEEN_DOZES_IN_MS) {
-            Log.d(TAG, "Allowing doze");
-            mLastDoze = now;
-            return true;
-        } else {
-            Log.d(TAG, "Denying doze");
-            return false;
+    @Override
+    public boolean handleMessage(Message msg) {
+        mQueueDepth.decrementAndGet();
+        mRequests++;
+        if (mBatchStartMs == 0) {
+            mBatchStartMs = msg.getWhen();
         }
+
+        // Only the last pending request of a batch sends the broadcast
+        if (!mHandler.hasMessages(MSG_PULSE)) {
+            if (DEBUG) Log.d(TAG, "Sending doze.pulse intent");
+            mContext.sendBroadcastAsUser(mPulseIntent, UserHandle.CURRENT);
+            mBroadcasts++;
+
+            long latencyMs = SystemClock.uptimeMillis() - mBatchStartMs;
+            mLastLatencyMs = latencyMs;
+            mMaxLatencyMs = Math.max(mMaxLatencyMs, latencyMs);
+            mBatchStartMs = 0;
+
+            for (int i = 0; i < Gesture.COUNT; i++) {
+                if (mBatchTimestamps[i] != 0) {
+                    mGestureDispatcher.complete(GESTURES[i], mBatchTimestamps[i]);
+                    mBatchTimestamps[i] = 0;
+                }
+            }
+        }
+
+        mWakeLockManager.release(GESTURES[msg.arg1]);
+        return true;
+    }
+
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    public long getLastLatencyMs() {
+        return mLastLatencyMs;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("Doze pulse: queued=" + getQueueDepth() + " requests=" + mRequests
+                + " broadcasts=" + mBroadcasts + " lastLatencyMs=" + mLastLatencyMs
+                + " maxLatencyMs=" + mMaxLatencyMs);
     }
 }
@@ -18,84 +18,90 @@
 package org.lineageos.settings.device.doze;
 
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.util.Log;
 
+import org.lineageos.settings.device.Gesture;
+import org.lineageos.settings.device.GestureDispatcher;
+import org.lineageos.settings.device.GestureEventBus;
+import org.lineageos.settings.device.GestureEventBus.Topic;
+import org.lineageos.settings.device.GestureRule;
 import org.lineageos.settings.device.MotoActionsSettings;
-import org.lineageos.settings.device.SensorAction;
+import org.lineageos.settings.device.PickUpRule;
+import org.lineageos.settings.device.SensorEventMerger;
 import org.lineageos.settings.device.SensorHelper;
+import org.lineageos.settings.device.SensorHelper.LatencyProfile;
+import org.lineageos.settings.device.WakeLockManager;
 
-public class FlatUpSensor implements ScreenStateNotifier {
+import java.io.PrintWriter;
+
+public class FlatUpSensor implements GestureEventBus.Subscriber, GestureRule.Callback {
     private static final String TAG = "MotoActions-FlatUpSensor";
 
     private final MotoActionsSettings mMotoActionsSettings;
     private final SensorHelper mSensorHelper;
-    private final SensorAction mSensorAction;
+    private final GestureDispatcher mGestureDispatcher;
+    private final DozePulseAction mDozePulseAction;
+    private final Runnable mPulse;
     private final Sensor mFlatUpSensor;
     private final Sensor mStowSensor;
+    private final GestureRule mRule;
+    private final SensorEventMerger mMerger;
 
     private boolean mEnabled;
-    private boolean mIsStowed;
-    private boolean mLastFlatUp;
+    private boolean mScreenOn;
 
     public FlatUpSensor(MotoActionsSettings MotoActionsSettings, SensorHelper sensorHelper,
-                        SensorAction action) {
+                        WakeLockManager wakeLockManager, GestureDispatcher gestureDispatcher,
+                        DozePulseAction action) {
         mMotoActionsSettings = MotoActionsSettings;
         mSensorHelper = sensorHelper;
-        mSensorAction = action;
+        mGestureDispatcher = gestureDispatcher;
+        mDozePulseAction = action;
 
         mFlatUpSensor = sensorHelper.getFlatUpSensor();
         mStowSensor = sensorHelper.getStowSensor();
+        mPulse = () -> action.pulse(Gesture.PICK_UP);
+
+        mRule = PickUpRule.build(TAG, sensorHelper, this);
+        mMerger = new SensorEventMerger(sensorHelper, wakeLockManager, Gesture.PICK_UP,
+                LatencyProfile.BALANCED, mRule);
     }
 
     @Override
-    public void screenTurnedOn() {
-        if (mEnabled) {
-            Log.d(TAG, "Disabling");
-            mSensorHelper.unregisterListener(mFlatUpListener);
-            mSensorHelper.unregisterListener(mStowListener);
-            mEnabled = false;
+    public void onStateChanged(Topic topic) {
+        if (topic == Topic.SCREEN_ON) {
+            mScreenOn = true;
+        } else if (topic == Topic.SCREEN_OFF) {
+            mScreenOn = false;
         }
-    }
 
-    @Override
-    public void screenTurnedOff() {
-        if (mMotoActionsSettings.isPickUpEnabled() && !mEnabled) {
+        boolean enable = !mScreenOn && mMotoActionsSettings.isPickUpEnabled();
+        if (enable && !mEnabled) {
             Log.d(TAG, "Enabling");
-            mSensorHelper.registerListener(mFlatUpSensor, mFlatUpListener);
-            mSensorHelper.registerListener(mStowSensor, mStowListener);
+            mMerger.register(mFlatUpSensor);
+            mMerger.register(mStowSensor);
             mEnabled = true;
+        } else if (!enable && mEnabled) {
+            Log.d(TAG, "Disabling");
+            mSensorHelper.unregisterListener(mMerger);
+            mSensorHelper.getHandler().post(() -> {
+                mMerger.reset();
+                mRule.reset();
+            });
+            mEnabled = false;
         }
     }
 
-    private final SensorEventListener mFlatUpListener = new SensorEventListener() {
-        @Override
-        public synchronized void onSensorChanged(SensorEvent event) {
-            boolean thisFlatUp = (event.values[0] != 0);
-
-            Log.d(TAG, "event: " + thisFlatUp + " mLastFlatUp=" + mLastFlatUp + " mIsStowed=" +
-                    mIsStowed);
-
-            if (mLastFlatUp && !thisFlatUp && !mIsStowed) {
-                mSensorAction.action();
-            }
-            mLastFlatUp = thisFlatUp;
-        }
-
-        @Override
-        public void onAccuracyChanged(Sensor mSensor, int accuracy) {
-        }
-    };
-
-    private final SensorEventListener mStowListener = new SensorEventListener() {
-        @Override
-        public synchronized void onSensorChanged(SensorEvent event) {
-            mIsStowed = (event.values[0] != 0);
+    @Override
+    public void onRuleFired(int outcome, long timestampNs) {
+        if (outcome != PickUpRule.OUTCOME_PICK_UP) {
+            return;
         }
+        mGestureDispatcher.dispatch(Gesture.PICK_UP, "pulse", timestampNs, mPulse);
+    }
 
-        @Override
-        public void onAccuracyChanged(Sensor mSensor, int accuracy) {
-        }
-    };
+    public void dump(PrintWriter pw) {
+        pw.println("  FlatUpSensor: enabled=" + mMotoActionsSettings.isPickUpEnabled()
+                + " armed=" + mEnabled + " " + mRule + " late=" + mMerger.getLateCount());
+    }
 }
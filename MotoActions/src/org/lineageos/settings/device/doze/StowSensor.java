@@ -18,15 +18,20 @@
 package org.lineageos.settings.device.doze;
 
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.util.Log;
 
+import org.lineageos.settings.device.Gesture;
+import org.lineageos.settings.device.GestureDispatcher;
+import org.lineageos.settings.device.GestureEventBus;
+import org.lineageos.settings.device.GestureEventBus.Topic;
+import org.lineageos.settings.device.GestureRule;
 import org.lineageos.settings.device.MotoActionsSettings;
-import org.lineageos.settings.device.SensorAction;
 import org.lineageos.settings.device.SensorHelper;
+import org.lineageos.settings.device.SensorHelper.LatencyProfile;
 
-public class StowSensor implements ScreenStateNotifier, SensorEventListener {
+import java.io.PrintWriter;
+
+public class StowSensor implements GestureEventBus.Subscriber, GestureRule.Callback {
     private static final String TAG = "MotoActions-StowSensor";
 
     // Maximum time for the hand to cover the sensor: 1s
@@ -35,75 +40,99 @@ public class StowSensor implements ScreenStateNotifier, SensorEventListener {
     // Minimum time until the device is considered to have been in the pocket: 5s
     private static final long POCKET_MIN_DELTA_NS = 5000L * 1000 * 1000;
 
+    private static final int STATE_UNSTOWED = 0;
+    private static final int STATE_STOWED = 1;
+    private static final int STATE_COUNT = 2;
+
+    private static final int OUTCOME_HANDWAVE = 0;
+    private static final int OUTCOME_POCKET = 1;
+    private static final int OUTCOME_UNSTOWED = 2;
+
     private final MotoActionsSettings mMotoActionsSettings;
     private final SensorHelper mSensorHelper;
-    private final SensorAction mSensorAction;
+    private final GestureDispatcher mGestureDispatcher;
+    private final DozePulseAction mDozePulseAction;
+    private final Runnable mPulse;
     private final Sensor mSensor;
+    private final GestureRule mRule;
 
     private boolean mEnabled;
-    private boolean mLastStowed;
-    private long mLastStowedTime;
+    private boolean mScreenOn;
 
     public StowSensor(MotoActionsSettings MotoActionsSettings, SensorHelper sensorHelper,
-                      SensorAction action) {
+                      GestureDispatcher gestureDispatcher, DozePulseAction action) {
         mMotoActionsSettings = MotoActionsSettings;
         mSensorHelper = sensorHelper;
-        mSensorAction = action;
+        mGestureDispatcher = gestureDispatcher;
+        mDozePulseAction = action;
 
         mSensor = sensorHelper.getStowSensor();
+        mPulse = () -> action.pulse(Gesture.STOW);
+
+        GestureRule.Builder rule = new GestureRule.Builder(TAG, STATE_COUNT);
+        int stowed = rule.signal(mSensor, GestureRule.NONZERO);
+        rule.on(STATE_UNSTOWED, stowed, true).to(STATE_STOWED);
+        rule.on(STATE_STOWED, stowed, true).to(STATE_STOWED);
+        rule.on(STATE_STOWED, stowed, false).within(HANDWAVE_MAX_DELTA_NS)
+                .to(STATE_UNSTOWED).fire(OUTCOME_HANDWAVE);
+        rule.on(STATE_STOWED, stowed, false).after(POCKET_MIN_DELTA_NS)
+                .to(STATE_UNSTOWED).fire(OUTCOME_POCKET);
+        rule.on(STATE_STOWED, stowed, false).to(STATE_UNSTOWED).fire(OUTCOME_UNSTOWED);
+        mRule = rule.build(this, sensorHelper.getPowerAccounting());
     }
 
     @Override
-    public void screenTurnedOn() {
-        if (mEnabled) {
-            Log.d(TAG, "Disabling");
-            mSensorHelper.unregisterListener(this);
-            mEnabled = false;
+    public void onStateChanged(Topic topic) {
+        if (topic == Topic.SCREEN_ON) {
+            mScreenOn = true;
+        } else if (topic == Topic.SCREEN_OFF) {
+            mScreenOn = false;
         }
-    }
 
-    @Override
-    public void screenTurnedOff() {
-        if ((mMotoActionsSettings.isPocketGestureEnabled()
-                || mMotoActionsSettings.isIrWakeupEnabled())
-                && !mEnabled) {
-            Log.d(TAG, "Enabling");
-            mSensorHelper.registerListener(mSensor, this);
+        boolean irWakeupEnabled = mMotoActionsSettings.isIrWakeupEnabled();
+        boolean enable = !mScreenOn
+                && (irWakeupEnabled || mMotoActionsSettings.isPocketGestureEnabled());
+        if (enable) {
+            if (!mEnabled) {
+                Log.d(TAG, "Enabling");
+            }
+            // Pocket detection only compares timestamps seconds apart, so it can batch deeply
+            LatencyProfile profile = irWakeupEnabled
+                    ? LatencyProfile.BALANCED : LatencyProfile.DEEP_BATCH;
+            mSensorHelper.registerListener(Gesture.STOW, mSensor, mRule, profile);
             mEnabled = true;
+        } else if (mEnabled) {
+            Log.d(TAG, "Disabling");
+            mSensorHelper.unregisterListener(mRule);
+            mSensorHelper.getHandler().post(mRule::reset);
+            mEnabled = false;
         }
     }
 
     @Override
-    public void onSensorChanged(SensorEvent event) {
-        boolean thisStowed = (event.values[0] != 0);
-        if (thisStowed) {
-            mLastStowedTime = event.timestamp;
-        } else if (mLastStowed) {
-            if (shouldPulse(event.timestamp)) {
-                mSensorAction.action();
-            }
+    public void onRuleFired(int outcome, long timestampNs) {
+        if (shouldPulse(outcome)) {
+            mGestureDispatcher.dispatch(Gesture.STOW, "pulse", timestampNs, mPulse);
         }
-        mLastStowed = thisStowed;
-        Log.d(TAG, "event: " + thisStowed);
     }
 
-    private boolean shouldPulse(long timestamp) {
-        long delta = timestamp - mLastStowedTime;
-
+    private boolean shouldPulse(int outcome) {
         boolean irWakeupEnabled = mMotoActionsSettings.isIrWakeupEnabled();
         boolean pocketGestureEnabled = mMotoActionsSettings.isPocketGestureEnabled();
 
         if (irWakeupEnabled && pocketGestureEnabled) {
             return true;
         } else if (irWakeupEnabled) {
-            return delta < HANDWAVE_MAX_DELTA_NS;
+            return outcome == OUTCOME_HANDWAVE;
         } else if (pocketGestureEnabled) {
-            return delta >= POCKET_MIN_DELTA_NS;
+            return outcome == OUTCOME_POCKET;
         }
         return false;
     }
 
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    public void dump(PrintWriter pw) {
+        boolean enabled = mMotoActionsSettings.isIrWakeupEnabled()
+                || mMotoActionsSettings.isPocketGestureEnabled();
+        pw.println("  StowSensor: enabled=" + enabled + " armed=" + mEnabled + " " + mRule);
     }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Reports the call state set by the test, as telephony would: to the registered callback on its
+ * executor, and once right away on registration.
+ */
+class FakeCallStateSource implements CallStateSource {
+    private Executor mExecutor;
+    private TelephonyCallback mCallback;
+    private int mState = TelephonyManager.CALL_STATE_IDLE;
+
+    @Override
+    public synchronized void registerTelephonyCallback(Executor executor,
+            TelephonyCallback callback) {
+        mExecutor = executor;
+        mCallback = callback;
+        report();
+    }
+
+    @Override
+    public synchronized void unregisterTelephonyCallback(TelephonyCallback callback) {
+        if (mCallback == callback) {
+            mExecutor = null;
+            mCallback = null;
+        }
+    }
+
+    synchronized void setCallState(int state) {
+        mState = state;
+        report();
+    }
+
+    private void report() {
+        if (mCallback == null) {
+            return;
+        }
+        TelephonyCallback.CallStateListener listener =
+                (TelephonyCallback.CallStateListener) mCallback;
+        int state = mState;
+        mExecutor.execute(() -> listener.onCallStateChanged(state));
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static org.robolectric.Shadows.shadowOf;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.os.Handler;
+import android.util.SparseArray;
+
+import org.robolectric.shadows.ShadowSensor;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Provides every sensor type asked for and delivers events to whoever is registered for it,
+ * on the handler it registered with, as SensorManager would. Like on a device, on-change
+ * sensors send their latest event to each new registration.
+ */
+class FakeSensorBackend implements SensorBackend {
+    static final float PROXIMITY_MAX_RANGE = 5.0f;
+
+    private static final int SENSOR_TYPE_MMI_CHOP_CHOP = 65546;
+
+    // Sensor.mFlags bits
+    private static final int FLAG_WAKE_UP = 1;
+    private static final int REPORTING_MODE_SHIFT = 1;
+
+    private final SparseArray<Sensor> mSensors = new SparseArray<>();
+    private final SparseArray<Reading> mLastReadings = new SparseArray<>();
+    private final List<Registration> mRegistrations = new ArrayList<>();
+
+    @Override
+    public synchronized List<Sensor> getSensorList() {
+        List<Sensor> sensors = new ArrayList<>();
+        for (int i = 0; i < mSensors.size(); i++) {
+            sensors.add(mSensors.valueAt(i));
+        }
+        return sensors;
+    }
+
+    @Override
+    public synchronized Sensor getDefaultWakeUpSensor(int type) {
+        Sensor sensor = mSensors.get(type);
+        if (sensor == null) {
+            sensor = ShadowSensor.newInstance(type);
+            if (type == Sensor.TYPE_PROXIMITY) {
+                shadowOf(sensor).setMaximumRange(PROXIMITY_MAX_RANGE);
+            }
+            // Chops are triggers, every other gesture sensor reports a state
+            int reportingMode = type == SENSOR_TYPE_MMI_CHOP_CHOP
+                    ? Sensor.REPORTING_MODE_SPECIAL_TRIGGER : Sensor.REPORTING_MODE_ON_CHANGE;
+            ReflectionHelpers.setField(sensor, "mFlags",
+                    FLAG_WAKE_UP | reportingMode << REPORTING_MODE_SHIFT);
+            mSensors.put(type, sensor);
+        }
+        return sensor;
+    }
+
+    @Override
+    public synchronized boolean registerListener(SensorEventListener listener, Sensor sensor,
+            int samplingPeriodUs, int maxReportLatencyUs, Handler handler) {
+        Registration r = new Registration(listener, sensor, maxReportLatencyUs, handler);
+        mRegistrations.add(r);
+        Reading last = mLastReadings.get(sensor.getType());
+        if (last != null && sensor.getReportingMode() == Sensor.REPORTING_MODE_ON_CHANGE) {
+            post(r, last.mTimestampNs, last.mValues);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void unregisterListener(SensorEventListener listener) {
+        mRegistrations.removeIf(r -> r.mListener == listener);
+    }
+
+    /**
+     * The report latency requested for the sensor, or -1 if it is not registered.
+     */
+    synchronized int getMaxReportLatencyUs(int type) {
+        for (Registration r : mRegistrations) {
+            if (r.mSensor.getType() == type) {
+                return r.mMaxReportLatencyUs;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Post an event to the listeners registered for the sensor type.
+     *
+     * @return false if nobody was registered for it
+     */
+    synchronized boolean deliver(int type, long timestampNs, float[] values) {
+        // Batches may arrive out of order, the sensor's state is its newest event
+        Reading last = mLastReadings.get(type);
+        if (last == null || last.mTimestampNs <= timestampNs) {
+            mLastReadings.put(type, new Reading(timestampNs, values));
+        }
+
+        boolean delivered = false;
+        for (Registration r : mRegistrations) {
+            if (r.mSensor.getType() == type) {
+                post(r, timestampNs, values);
+                delivered = true;
+            }
+        }
+        return delivered;
+    }
+
+    private static void post(Registration r, long timestampNs, float[] values) {
+        SensorEvent event = new SensorEvent(values.length);
+        event.sensor = r.mSensor;
+        event.timestamp = timestampNs;
+        System.arraycopy(values, 0, event.values, 0, values.length);
+        SensorEventListener listener = r.mListener;
+        r.mHandler.post(() -> listener.onSensorChanged(event));
+    }
+
+    private static class Reading {
+        final long mTimestampNs;
+        final float[] mValues;
+
+        Reading(long timestampNs, float[] values) {
+            mTimestampNs = timestampNs;
+            mValues = values.clone();
+        }
+    }
+
+    private static class Registration {
+        final SensorEventListener mListener;
+        final Sensor mSensor;
+        final int mMaxReportLatencyUs;
+        final Handler mHandler;
+
+        Registration(SensorEventListener listener, Sensor sensor, int maxReportLatencyUs,
+                Handler handler) {
+            mListener = listener;
+            mSensor = sensor;
+            mMaxReportLatencyUs = maxReportLatencyUs;
+            mHandler = handler;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.telephony.TelephonyManager;
+
+import org.lineageos.settings.device.GestureEventBus.Topic;
+import org.lineageos.settings.device.actions.ChopChopSensor;
+import org.lineageos.settings.device.actions.FlipToMute;
+import org.lineageos.settings.device.actions.LiftToSilence;
+import org.lineageos.settings.device.actions.ProximitySilencer;
+import org.lineageos.settings.device.doze.DozePulseAction;
+import org.lineageos.settings.device.doze.FlatUpSensor;
+import org.lineageos.settings.device.doze.StowSensor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Wires up a fresh set of gesture components the way MotoActionsService does, on top of a
+ * {@link FakeSensorBackend} and a {@link FakeCallStateSource}, and replays recorded traces
+ * through them. The clock follows the trace timestamps, so batching windows and timeouts behave
+ * as they would on a device.
+ *
+ * <p>Each trace line is "timestamp_ns sensor_type values..." or "timestamp_ns call STATE", with
+ * STATE one of IDLE, RINGING or OFFHOOK. A "# expect GESTURE action" comment declares a gesture
+ * the trace should fire; any other gesture fired counts as a false trigger.
+ */
+class GestureReplayHarness implements GestureDispatcher.Observer {
+    // Time left for held back events and queued actions once the trace ends
+    private static final long SETTLE_MS = 3000;
+
+    private static final String EXPECT = "# expect ";
+
+    final FakeSensorBackend mSensorBackend = new FakeSensorBackend();
+    final FakeCallStateSource mCallStateSource = new FakeCallStateSource();
+    final GestureEventBus mEventBus = new GestureEventBus();
+    final PowerAccounting mPowerAccounting;
+    final SensorHelper mSensorHelper;
+    final WakeLockManager mWakeLockManager;
+    final GestureDispatcher mGestureDispatcher;
+    final GestureStats mGestureStats;
+
+    // Trace time is the simulated clock moved to where the first trace started
+    private volatile long mClockOffsetNs;
+    private boolean mClockSet;
+    final TimeSource mTimeSource = () -> SystemClock.elapsedRealtimeNanos() + mClockOffsetNs;
+
+    private final List<String> mFired = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> mDecisionLatenciesNs =
+            Collections.synchronizedList(new ArrayList<>());
+    private final List<String> mExpected = new ArrayList<>();
+
+    /**
+     * Settings are read from the default shared preferences, so set them up before.
+     */
+    GestureReplayHarness(Context context, boolean screenOn) {
+        MotoActionsSettings actionsSettings = new MotoActionsSettings(context, mEventBus);
+        PowerAccounting powerAccounting = new PowerAccounting(context);
+        mPowerAccounting = powerAccounting;
+        mSensorHelper = new SensorHelper(context, mSensorBackend, powerAccounting);
+        WakeLockManager wakeLockManager = new WakeLockManager(context);
+        mWakeLockManager = wakeLockManager;
+        mGestureStats = new GestureStats(mTimeSource);
+        mGestureDispatcher =
+                new GestureDispatcher(wakeLockManager, mGestureStats, powerAccounting);
+        mGestureDispatcher.addObserver(this);
+        DozePulseAction dozePulseAction = new DozePulseAction(context, mTimeSource,
+                wakeLockManager, mGestureDispatcher);
+        CallStateTracker callStateTracker =
+                new CallStateTracker(mCallStateSource, mSensorHelper, mTimeSource);
+
+        mEventBus.subscribe(dozePulseAction, Topic.SCREEN_OFF);
+        MotoActionsService.setUpLimiters(mGestureDispatcher, dozePulseAction);
+
+        mEventBus.subscribe(new StowSensor(actionsSettings, mSensorHelper, mGestureDispatcher,
+                dozePulseAction), Topic.SCREEN_ON, Topic.SCREEN_OFF, Topic.DOZE_SETTING,
+                Topic.IR_WAKEUP_SETTING, Topic.POCKET_SETTING);
+        mEventBus.subscribe(new FlatUpSensor(actionsSettings, mSensorHelper, wakeLockManager,
+                mGestureDispatcher, dozePulseAction), Topic.SCREEN_ON, Topic.SCREEN_OFF,
+                Topic.DOZE_SETTING, Topic.PICK_UP_SETTING);
+        mEventBus.subscribe(new ChopChopSensor(actionsSettings, mSensorHelper,
+                mGestureDispatcher), Topic.CHOP_CHOP_SETTING);
+        mEventBus.subscribe(new ProximitySilencer(actionsSettings, context, mSensorHelper,
+                mGestureDispatcher, callStateTracker), Topic.IR_SILENCER_SETTING);
+        mEventBus.subscribe(new FlipToMute(actionsSettings, context, mSensorHelper,
+                mGestureDispatcher), Topic.FLIP_TO_MUTE_SETTING);
+        mEventBus.subscribe(new LiftToSilence(actionsSettings, context, mSensorHelper,
+                wakeLockManager, mGestureDispatcher, callStateTracker),
+                Topic.LIFT_TO_SILENCE_SETTING);
+
+        mEventBus.publish(screenOn ? Topic.SCREEN_ON : Topic.SCREEN_OFF);
+        for (Topic topic : Topic.values()) {
+            if (topic != Topic.SCREEN_ON && topic != Topic.SCREEN_OFF) {
+                mEventBus.publish(topic);
+            }
+        }
+        idle();
+    }
+
+    void setScreenOn(boolean screenOn) {
+        mEventBus.publish(screenOn ? Topic.SCREEN_ON : Topic.SCREEN_OFF);
+        idle();
+    }
+
+    @Override
+    public void onGestureFired(Gesture gesture, String action, long timestampNs) {
+        mFired.add(gesture + " " + action);
+        mDecisionLatenciesNs.add(mTimeSource.elapsedRealtimeNanos() - timestampNs);
+    }
+
+    /**
+     * Replay a trace from the test resources, after any replayed before.
+     *
+     * @return the gestures that got past their limiters so far, as "GESTURE action", in order
+     */
+    List<String> replay(String trace) throws IOException {
+        try (InputStream in = getClass().getResourceAsStream("/traces/" + trace)) {
+            if (in == null) {
+                throw new IOException("No trace " + trace);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith(EXPECT)) {
+                    mExpected.add(line.substring(EXPECT.length()).trim());
+                }
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                long timestampNs = Long.parseLong(fields[0]);
+                if (!mClockSet) {
+                    mClockOffsetNs = timestampNs - SystemClock.elapsedRealtimeNanos();
+                    mClockSet = true;
+                }
+
+                // Batched sensors may deliver older events after newer ones
+                long nowNs = mTimeSource.elapsedRealtimeNanos();
+                if (timestampNs > nowNs) {
+                    advance(Duration.ofNanos(timestampNs - nowNs));
+                }
+                if (fields[1].equals("call")) {
+                    mCallStateSource.setCallState(parseCallState(fields[2]));
+                    continue;
+                }
+                int type = Integer.parseInt(fields[1]);
+                float[] values = new float[fields.length - 2];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Float.parseFloat(fields[i + 2]);
+                }
+                mSensorBackend.deliver(type, timestampNs, values);
+            }
+        }
+        advance(Duration.ofMillis(SETTLE_MS));
+        System.out.println(trace + ": fired=" + mFired + " falseTriggers=" + getFalseTriggers()
+                + " maxDecisionLatencyMs=" + getMaxDecisionLatencyMs());
+        return new ArrayList<>(mFired);
+    }
+
+    private static int parseCallState(String state) {
+        switch (state) {
+            case "IDLE":
+                return TelephonyManager.CALL_STATE_IDLE;
+            case "RINGING":
+                return TelephonyManager.CALL_STATE_RINGING;
+            case "OFFHOOK":
+                return TelephonyManager.CALL_STATE_OFFHOOK;
+            default:
+                throw new IllegalArgumentException("Unknown call state " + state);
+        }
+    }
+
+    /**
+     * Gestures fired so far that no replayed trace expected.
+     */
+    int getFalseTriggers() {
+        List<String> unexpected = new ArrayList<>(mFired);
+        for (String expected : mExpected) {
+            unexpected.remove(expected);
+        }
+        return unexpected.size();
+    }
+
+    /**
+     * Longest time from the event a gesture fired for to the gesture firing, in trace time.
+     */
+    long getMaxDecisionLatencyMs() {
+        long max = 0;
+        synchronized (mDecisionLatenciesNs) {
+            for (long latencyNs : mDecisionLatenciesNs) {
+                max = Math.max(max, latencyNs);
+            }
+        }
+        return max / 1000000;
+    }
+
+    /**
+     * Let time pass on the sensor thread, then run whatever that made the other threads do.
+     */
+    private void advance(Duration duration) {
+        shadowOf(mSensorHelper.getLooper()).idleFor(duration);
+        idle();
+    }
+
+    void idle() {
+        shadowOf(mSensorHelper.getLooper()).idle();
+        shadowOf(mGestureDispatcher.getLooper()).idle();
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.device;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.NotificationManager;
+import android.content.Context;
+
+import androidx.preference.PreferenceManager;
+
+import org.lineageos.settings.device.SensorHelper.LatencyProfile;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class GestureReplayTest {
+    private static final int FLAT_UP_SENSOR_TYPE = 65537;
+    private static final int STOW_SENSOR_TYPE = 65539;
+    private static final int CHOP_CHOP_SENSOR_TYPE = 65546;
+
+    private Context mContext;
+    private NotificationManager mNotificationManager;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mNotificationManager = mContext.getSystemService(NotificationManager.class);
+        shadowOf(mNotificationManager).setNotificationPolicyAccessGranted(true);
+        mNotificationManager.setInterruptionFilter(NotificationManager.INTERRUPTION_FILTER_ALL);
+    }
+
+    private void setGestureEnabled(String key, boolean enabled) {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putBoolean(key, enabled).commit();
+    }
+
+    @Test
+    public void handWaveWithScreenOffPulses() throws Exception {
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, false);
+
+        List<String> fired = harness.replay("stow_handwave.txt");
+
+        assertThat(fired).containsExactly("STOW pulse");
+    }
+
+    @Test
+    public void takenOutOfPocketPulsesWhenStowWasAlreadyRegistered() throws Exception {
+        // Chop-chop holds the stow sensor with the screen on, at the profile StowSensor uses
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, true);
+        harness.replay("pocketed.txt");
+        harness.setScreenOn(false);
+
+        List<String> fired = harness.replay("out_of_pocket.txt");
+
+        assertThat(fired).containsExactly("STOW pulse");
+    }
+
+    @Test
+    public void pickUpWithScreenOffPulses() throws Exception {
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, false);
+
+        List<String> fired = harness.replay("pick_up.txt");
+
+        assertThat(fired).containsExactly("PICK_UP pulse");
+        // Held back for the stow sensor's batches at most
+        assertThat(harness.getMaxDecisionLatencyMs())
+                .isAtMost((long) LatencyProfile.BALANCED.maxReportLatencyMs);
+    }
+
+    @Test
+    public void eventsHeldForOrderingKeepTheDeviceAwake() throws Exception {
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, false);
+
+        harness.mSensorBackend.deliver(FLAT_UP_SENSOR_TYPE, 2000000000L, new float[] {1.0f});
+        harness.idle();
+        assertThat(harness.mWakeLockManager.isHeld()).isTrue();
+
+        harness.replay("pick_up.txt");
+        assertThat(harness.mWakeLockManager.isHeld()).isFalse();
+    }
+
+    @Test
+    public void pocketingIsNotAPickUpWhenBatchesArriveOutOfOrder() throws Exception {
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, false);
+
+        harness.replay("pick_up_pocketed.txt");
+
+        assertThat(harness.getFalseTriggers()).isEqualTo(0);
+    }
+
+    @Test
+    public void chopOutOfPocketTogglesTorchUnlessCovered() throws Exception {
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, true);
+
+        List<String> fired = harness.replay("chop_chop.txt");
+
+        assertThat(fired).containsExactly("CHOP_CHOP torch");
+    }
+
+    @Test
+    public void chopChopKeepsStowBatchedWithScreenOn() throws Exception {
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, true);
+
+        assertThat(harness.mSensorBackend.getMaxReportLatencyUs(STOW_SENSOR_TYPE))
+                .isEqualTo(LatencyProfile.BALANCED.maxReportLatencyMs * 1000);
+    }
+
+    @Test
+    public void chopChopArmsFromStowStateKnownBeforeEnabling() throws Exception {
+        // StowSensor holds the stow sensor with the screen off, at the profile chop-chop uses
+        setGestureEnabled("gesture_chop_chop", false);
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, false);
+        harness.replay("unstowed.txt");
+        setGestureEnabled("gesture_chop_chop", true);
+        harness.idle();
+
+        List<String> fired = harness.replay("chop.txt");
+
+        assertThat(fired).containsExactly("CHOP_CHOP torch");
+    }
+
+    @Test
+    public void chopIsIgnoredWhenProximityWasCoveredBeforeArming() throws Exception {
+        // The proximity silencer already holds proximity at the profile chop-chop arms with
+        setGestureEnabled("gesture_ir_silencer", true);
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, true);
+
+        List<String> fired = harness.replay("chop_chop_covered_while_ringing.txt");
+
+        assertThat(fired).isEmpty();
+    }
+
+    @Test
+    public void chopInPocketIsIgnored() throws Exception {
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, true);
+
+        List<String> fired = harness.replay("chop_chop_stowed.txt");
+
+        assertThat(fired).isEmpty();
+    }
+
+    @Test
+    public void chopsInPocketAreWakeupsForNothing() throws Exception {
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, true);
+
+        harness.replay("chop_chop_stowed.txt");
+
+        StringWriter dump = new StringWriter();
+        harness.mPowerAccounting.dump(new PrintWriter(dump));
+        assertThat(dump.toString()).contains("sensor=" + CHOP_CHOP_SENSOR_TYPE + " noAction=2");
+        // Going into the pocket disarmed chop-chop
+        assertThat(dump.toString()).doesNotContain("sensor=" + STOW_SENSOR_TYPE + " noAction");
+    }
+
+    @Test
+    public void flipToMuteRestoresFilterWhenPickedUp() throws Exception {
+        setGestureEnabled("gesture_flip_to_mute", true);
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, true);
+
+        List<String> fired = harness.replay("flip_to_mute.txt");
+
+        assertThat(fired)
+                .containsExactly("FLIP_TO_MUTE priority", "FLIP_TO_MUTE restore").inOrder();
+        assertThat(mNotificationManager.getCurrentInterruptionFilter())
+                .isEqualTo(NotificationManager.INTERRUPTION_FILTER_ALL);
+    }
+
+    @Test
+    public void flipToMuteAlwaysRestoresWhenRateLimited() throws Exception {
+        setGestureEnabled("gesture_flip_to_mute", true);
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, true);
+
+        List<String> fired = harness.replay("flip_to_mute_burst.txt");
+
+        // The fifth flip exceeds the burst, but every flip back restores
+        assertThat(fired).containsExactly(
+                "FLIP_TO_MUTE priority", "FLIP_TO_MUTE restore",
+                "FLIP_TO_MUTE priority", "FLIP_TO_MUTE restore",
+                "FLIP_TO_MUTE priority", "FLIP_TO_MUTE restore",
+                "FLIP_TO_MUTE priority", "FLIP_TO_MUTE restore",
+                "FLIP_TO_MUTE restore").inOrder();
+        assertThat(mNotificationManager.getCurrentInterruptionFilter())
+                .isEqualTo(NotificationManager.INTERRUPTION_FILTER_ALL);
+    }
+
+    @Test
+    public void coveringWhileRingingSilences() throws Exception {
+        setGestureEnabled("gesture_ir_silencer", true);
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, true);
+
+        List<String> fired = harness.replay("proximity_silencer.txt");
+
+        assertThat(fired).containsExactly("PROXIMITY_SILENCER silence");
+        assertThat(harness.getMaxDecisionLatencyMs())
+                .isAtMost((long) LatencyProfile.LOW_LATENCY.maxReportLatencyMs);
+    }
+
+    @Test
+    public void coveredAsRingingStartsDoesNotSilence() throws Exception {
+        setGestureEnabled("gesture_ir_silencer", true);
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, true);
+
+        harness.replay("proximity_silencer_too_soon.txt");
+
+        assertThat(harness.getFalseTriggers()).isEqualTo(0);
+    }
+
+    @Test
+    public void liftingWhileRingingSilences() throws Exception {
+        setGestureEnabled("gesture_lift_to_silence", true);
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, true);
+
+        List<String> fired = harness.replay("lift_to_silence.txt");
+
+        assertThat(fired).containsExactly("LIFT_TO_SILENCE silence");
+        // Nothing is held back for ordering at the low latency profile
+        assertThat(harness.getMaxDecisionLatencyMs())
+                .isAtMost((long) LatencyProfile.LOW_LATENCY.maxReportLatencyMs);
+    }
+
+    @Test
+    public void pocketingWhileRingingDoesNotSilence() throws Exception {
+        setGestureEnabled("gesture_lift_to_silence", true);
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, true);
+
+        harness.replay("lift_to_silence_pocketed.txt");
+
+        assertThat(harness.getFalseTriggers()).isEqualTo(0);
+    }
+
+    @Test
+    public void flipToMuteIsOffByDefault() throws Exception {
+        GestureReplayHarness harness = new GestureReplayHarness(mContext, true);
+
+        List<String> fired = harness.replay("flip_to_mute.txt");
+
+        assertThat(fired).isEmpty();
+    }
+}
@@ -16,68 +16,141 @@ import android.telephony.CarrierConfigManager
 import android.telephony.SubscriptionManager
 import android.telephony.TelephonyManager
 import android.util.Log
-import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import kotlin.random.Random
 
 class NrEnablerService : Service() {
     private lateinit var motoExtService: QcomMotoExtTelephonyService
     private val handler by lazy { Handler(mainLooper) }
-    private val workingInProgress = AtomicBoolean(false)
-
-    private val repeatWorkOnNRModeAndDSSIfFail = object : Runnable {
-        override fun run() {
-            if (workingInProgress.getAndSet(true))
-                return
-            if (!workOnNRModeAndDSS()) {
-                Log.v(TAG, "workOnNRModeAndDSS failed, retry after 5s")
-                handler.removeCallbacks(this)
-                handler.postDelayed(this, 5000)
-            }
-            workingInProgress.set(false)
-        }
-    }
+
+    // Each phone is configured by its own task, so a slow or failing SIM doesn't hold up others
+    private val executor: ExecutorService = Executors.newCachedThreadPool()
+
+    // Only accessed on the main thread
+    private val pendingPhoneIds = mutableSetOf<Int>()
+    private val inFlightPhoneIds = mutableSetOf<Int>()
+    private val dirtyPhoneIds = mutableSetOf<Int>()
+    private var retryAttempt = 0
+
+    private val retryFailedPhones = Runnable { dispatchPendingPhones() }
 
     private val broadcastReceiver = object : BroadcastReceiver() {
         override fun onReceive(context: Context, intent: Intent) {
-            if (!workingInProgress.get()) {
-                handler.post(repeatWorkOnNRModeAndDSSIfFail)
-            }
+            workOnNRModeAndDSS()
         }
     }
 
     override fun onCreate() {
-        motoExtService = QcomMotoExtTelephonyService(this)
+        motoExtService = QcomMotoExtTelephonyService(this) {
+            // Requests failed while the tunnel was down, no need to wait for the next retry
+            if (pendingPhoneIds.isNotEmpty()) {
+                Log.v(TAG, "QcrilMsgTunnel connected, retrying pending phones")
+                retryAttempt = 0
+                handler.removeCallbacks(retryFailedPhones)
+                dispatchPendingPhones()
+            }
+        }
         registerReceiver(
             broadcastReceiver, IntentFilter(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED)
         )
     }
 
-    private fun workOnNRModeAndDSS(): Boolean {
-        val activeSubs =
-            getSystemService(SubscriptionManager::class.java)?.getActiveSubscriptionInfoList()
-        if (activeSubs.isNullOrEmpty()) {
+    override fun onDestroy() {
+        unregisterReceiver(broadcastReceiver)
+        motoExtService.destroy()
+        handler.removeCallbacks(retryFailedPhones)
+        executor.shutdownNow()
+    }
+
+    private fun workOnNRModeAndDSS() {
+        val activePhoneIds = getActivePhoneIds()
+        if (activePhoneIds.isEmpty()) {
             Log.v(TAG, "workOnNRModeAndDSS: no active sub.")
-            return true
         }
+        for (phoneId in activePhoneIds) {
+            pendingPhoneIds.add(phoneId)
+            if (phoneId in inFlightPhoneIds) {
+                // Run again once the current attempt is done
+                dirtyPhoneIds.add(phoneId)
+            }
+        }
+        retryAttempt = 0
+        handler.removeCallbacks(retryFailedPhones)
+        dispatchPendingPhones(activePhoneIds)
+    }
+
+    // Phones with an active subscription and a modem behind them, the only ones to configure
+    private fun getActivePhoneIds(): Set<Int> {
+        val activeSubs =
+            getSystemService(SubscriptionManager::class.java)?.getActiveSubscriptionInfoList()
+                ?: return emptySet()
+        val phoneIds = mutableSetOf<Int>()
         for (aSubInfo in activeSubs) {
             val phoneId = SubscriptionManager.getPhoneId(aSubInfo.subscriptionId)
-            if (!validatePhoneId(phoneId)) {
-                Log.e(TAG, "Invalid phoneId: $phoneId")
-                return false
+            if (validatePhoneId(phoneId)) {
+                phoneIds.add(phoneId)
+            } else {
+                Log.e(TAG, "Invalid phoneId: $phoneId for sub ${aSubInfo.subscriptionId}")
             }
+        }
+        return phoneIds
+    }
 
-            // Moto sets them based on carrier config, but we unconditionally
-            // enable NR and DSS here because maintaining carrier config is
-            // intractable for us.
-            Log.v(TAG, "workOnNRModeAndDSS: setNrModeDisabled for phone ${phoneId}")
-            if (!motoExtService.setNrModeDisabled(phoneId, NrMode.AUTO)) {
-                return false
-            }
-            Log.v(TAG, "workOnNRModeAndDSS: setDSSEnabled for phone ${phoneId}")
-            if (!motoExtService.setDSSEnabled(phoneId, 1.toByte())) {
-                return false
+    private fun dispatchPendingPhones(activePhoneIds: Set<Int> = getActivePhoneIds()) {
+        // Forget phones whose SIM went away since they were queued
+        pendingPhoneIds.retainAll(activePhoneIds)
+        dirtyPhoneIds.retainAll(activePhoneIds)
+        for (phoneId in pendingPhoneIds) {
+            if (inFlightPhoneIds.add(phoneId)) {
+                executor.execute {
+                    val success = workOnNRModeAndDSS(phoneId)
+                    handler.post { onPhoneDone(phoneId, success) }
+                }
             }
         }
-        return true
+    }
+
+    private fun onPhoneDone(phoneId: Int, success: Boolean) {
+        inFlightPhoneIds.remove(phoneId)
+        if (dirtyPhoneIds.remove(phoneId)) {
+            dispatchPendingPhones()
+            return
+        }
+        if (success) {
+            pendingPhoneIds.remove(phoneId)
+            return
+        }
+        if (handler.hasCallbacks(retryFailedPhones)) {
+            // Another phone failed in the same round and already scheduled the retry
+            return
+        }
+        if (retryAttempt >= MAX_RETRIES) {
+            Log.e(TAG, "workOnNRModeAndDSS failed for phone $phoneId, giving up until next trigger")
+            return
+        }
+        val delayMs = retryDelayMs(retryAttempt++)
+        Log.v(TAG, "workOnNRModeAndDSS failed for phone $phoneId, retry after ${delayMs}ms")
+        handler.postDelayed(retryFailedPhones, delayMs)
+    }
+
+    // Exponential backoff with the upper half jittered, so that phones and devices spread out
+    private fun retryDelayMs(attempt: Int): Long {
+        val delayMs = (RETRY_INITIAL_DELAY_MS shl attempt.coerceAtMost(16))
+            .coerceAtMost(RETRY_MAX_DELAY_MS)
+        return delayMs / 2 + Random.nextLong(delayMs / 2 + 1)
+    }
+
+    private fun workOnNRModeAndDSS(phoneId: Int): Boolean {
+        // Moto sets them based on carrier config, but we unconditionally
+        // enable NR and DSS here because maintaining carrier config is
+        // intractable for us.
+        Log.v(TAG, "workOnNRModeAndDSS: setNrModeDisabled for phone ${phoneId}")
+        if (!motoExtService.setNrModeDisabled(phoneId, NrMode.AUTO)) {
+            return false
+        }
+        Log.v(TAG, "workOnNRModeAndDSS: setDSSEnabled for phone ${phoneId}")
+        return motoExtService.setDSSEnabled(phoneId, 1.toByte())
     }
 
     private fun validatePhoneId(phoneId: Int): Boolean {
@@ -90,5 +163,9 @@ class NrEnablerService : Service() {
 
     companion object {
         private const val TAG = "MotoNrEnabler"
+
+        private const val RETRY_INITIAL_DELAY_MS = 2000L
+        private const val RETRY_MAX_DELAY_MS = 10 * 60 * 1000L
+        private const val MAX_RETRIES = 12
     }
 }
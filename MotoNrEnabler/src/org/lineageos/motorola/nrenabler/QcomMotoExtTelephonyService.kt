@@ -5,16 +5,108 @@
 
 package org.lineageos.motorola.nrenabler
 
+import android.content.BroadcastReceiver
 import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.telephony.SubscriptionManager
+import android.telephony.TelephonyManager
 import android.util.Log
 import com.android.internal.telephony.PhoneFactory
 import java.nio.ByteBuffer
 
-class QcomMotoExtTelephonyService(private val context: Context) {
-    private val qcrilMsgTunnelConnector = QcrilMsgTunnelConnector(context)
+class QcomMotoExtTelephonyService(
+    private val context: Context, onTunnelConnected: () -> Unit
+) {
+    // Last known modem values by phoneId, so that repeated carrier config changes cost no
+    // modem round trips. Dropped whenever the modem may have changed them behind our back.
+    // Invalidations bump a generation, and values read or written by a worker that started
+    // under an older generation are not cached. All guarded by cacheLock.
+    private val cacheLock = Any()
+    private val nrModeCache = mutableMapOf<Int, NrMode>()
+    private val dssCache = mutableMapOf<Int, Byte>()
+    private val phoneGenerations = mutableMapOf<Int, Int>()
+    private var generation = 0
+
+    private val qcrilMsgTunnelConnector = QcrilMsgTunnelConnector(context) {
+        // Nothing is known about a modem seen through a new connection
+        invalidateAll()
+        onTunnelConnected()
+    }
+
+    private val invalidationReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            // The cache is keyed by phoneId, which a slot index is not, so go through the
+            // subscription. A SIM without one, e.g. one being removed, may be on any phone.
+            val subId = intent.getIntExtra(
+                SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID
+            )
+            val phoneId = SubscriptionManager.getPhoneId(subId)
+            if (intent.action == Intent.ACTION_AIRPLANE_MODE_CHANGED ||
+                !SubscriptionManager.isValidPhoneId(phoneId)
+            ) {
+                invalidateAll()
+            } else {
+                invalidate(phoneId)
+            }
+        }
+    }
+
+    init {
+        val filter = IntentFilter(Intent.ACTION_AIRPLANE_MODE_CHANGED)
+        filter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED)
+        filter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED)
+        context.registerReceiver(invalidationReceiver, filter)
+    }
+
+    fun destroy() {
+        context.unregisterReceiver(invalidationReceiver)
+        qcrilMsgTunnelConnector.destroy()
+    }
+
+    private fun invalidate(phoneId: Int) {
+        Log.v(TAG, "Invalidating cached modem values for phone $phoneId")
+        synchronized(cacheLock) {
+            phoneGenerations[phoneId] = (phoneGenerations[phoneId] ?: 0) + 1
+            nrModeCache.remove(phoneId)
+            dssCache.remove(phoneId)
+        }
+    }
+
+    private fun invalidateAll() {
+        Log.v(TAG, "Invalidating all cached modem values")
+        synchronized(cacheLock) {
+            generation++
+            nrModeCache.clear()
+            dssCache.clear()
+        }
+    }
+
+    // Changes with every invalidation that affects the phone
+    private fun generationOf(phoneId: Int) =
+        synchronized(cacheLock) { generation + (phoneGenerations[phoneId] ?: 0) }
+
+    private fun <T> getCached(cache: Map<Int, T>, phoneId: Int) =
+        synchronized(cacheLock) { cache[phoneId] }
+
+    // Keep a value learnt from the modem, unless the cache was invalidated since
+    private fun <T> putCached(cache: MutableMap<Int, T>, phoneId: Int, gen: Int, value: T) {
+        synchronized(cacheLock) {
+            if (generationOf(phoneId) == gen) {
+                cache[phoneId] = value
+            }
+        }
+    }
+
+    private fun <T> removeCached(cache: MutableMap<Int, T>, phoneId: Int) {
+        synchronized(cacheLock) { cache.remove(phoneId) }
+    }
 
     fun setNrModeDisabled(phoneId: Int, mode: NrMode): Boolean {
-        val nrModeInModem = getNrModeDisabled(phoneId)
+        val gen = generationOf(phoneId)
+        val nrModeInModem = getCached(nrModeCache, phoneId)
+            ?: getNrModeDisabled(phoneId)?.also { putCached(nrModeCache, phoneId, gen, it) }
         Log.v(TAG, "nrModeInModem = $nrModeInModem")
         if (mode == nrModeInModem) {
             Log.d(
@@ -28,7 +120,12 @@ class QcomMotoExtTelephonyService(private val context: Context) {
         buf.order(QcomOemConstants.getByteOrderByRequestId(QcomOemConstants.OEM_RIL_REQUEST_SET_NR_DISABLE_MODE))
         buf.putInt(QcomOemConstants.OEM_RIL_REQUEST_SET_NR_DISABLE_MODE).putInt(1)
             .put(mode.toInt().toByte())
-        return qcrilMsgTunnelConnector.invokeOemRilRequestRawForPhone(phoneId, data, null) >= 0
+        if (qcrilMsgTunnelConnector.invokeOemRilRequestRawForPhone(phoneId, data, null) < 0) {
+            removeCached(nrModeCache, phoneId)
+            return false
+        }
+        putCached(nrModeCache, phoneId, gen, mode)
+        return true
     }
 
     private fun getNrModeDisabled(phoneId: Int): NrMode? {
@@ -43,20 +140,28 @@ class QcomMotoExtTelephonyService(private val context: Context) {
         return null
     }
 
-    private fun getDSSEnabled(phoneId: Int): Byte {
+    private fun getDSSEnabled(phoneId: Int): Byte? {
         val rdeNv =
             qcrilMsgTunnelConnector.getRdeNvValueByElementId(phoneId, QcomNvInfo.RDE_EFS_DSS_I)
-        return (rdeNv?.dataObj as QcomNvInfo.NvGenericDataType?)?.data?.get(0) ?: 2.toByte()
+        return (rdeNv?.dataObj as QcomNvInfo.NvGenericDataType?)?.data?.get(0)
     }
 
     fun setDSSEnabled(phoneId: Int, enabled: Byte): Boolean {
-        val prev = getDSSEnabled(phoneId)
+        val gen = generationOf(phoneId)
+        val prev = getCached(dssCache, phoneId)
+            ?: getDSSEnabled(phoneId)?.also { putCached(dssCache, phoneId, gen, it) }
+            ?: 2.toByte()
         Log.v(TAG, "previous DSS mode = $prev")
         if (prev == enabled) {
             Log.d(TAG, "Skip setDSSEnabled as no change.")
             return true
         }
-        return qcrilMsgTunnelConnector.setRdeNvValue(phoneId, QcomNvInfo.RDE_EFS_DSS_I, enabled)
+        if (!qcrilMsgTunnelConnector.setRdeNvValue(phoneId, QcomNvInfo.RDE_EFS_DSS_I, enabled)) {
+            removeCached(dssCache, phoneId)
+            return false
+        }
+        putCached(dssCache, phoneId, gen, enabled)
+        return true
     }
 
     companion object {
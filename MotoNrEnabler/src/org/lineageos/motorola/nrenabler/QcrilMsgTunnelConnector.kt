@@ -15,31 +15,92 @@ import android.os.RemoteException
 import android.util.Log
 import com.android.internal.telephony.uicc.IccUtils
 import com.qualcomm.qcrilmsgtunnel.IQcrilMsgTunnel
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
 
-class QcrilMsgTunnelConnector(private val context: Context) {
+/**
+ * @param onConnected called on the main thread whenever the tunnel service (re)connects
+ */
+class QcrilMsgTunnelConnector(
+    private val context: Context, private val onConnected: () -> Unit
+) {
     private val handler = Handler(context.mainLooper)
 
+    // Runs requests that were queued while the service was not connected. The request lists
+    // and destroyed are guarded by pendingRequests.
+    private val flushExecutor = Executors.newSingleThreadExecutor()
+    private val pendingRequests = ArrayDeque<PendingRequest>()
+    private val flushingRequests = mutableSetOf<PendingRequest>()
+    private var destroyed = false
+
+    // Requests are issued from worker threads
+    @Volatile
     private var qcrilMsgService: IQcrilMsgTunnel? = null
     private val qcrilMsgTunnelConnection: ServiceConnection = object : ServiceConnection {
         override fun onServiceConnected(name: ComponentName, service: IBinder) {
             Log.d(TAG, "QcrilMsgTunnel Service connected")
-            qcrilMsgService = IQcrilMsgTunnel.Stub.asInterface(service)
-            if (qcrilMsgService == null) {
+            val qcrilMsgTunnel = IQcrilMsgTunnel.Stub.asInterface(service)
+            if (qcrilMsgTunnel == null) {
                 Log.e(TAG, "QcrilMsgTunnelService Connect Failed (onServiceConnected)")
                 return
             }
             service.linkToDeath(qcrilMsgServiceDeathRecipient, 0)
+            val queued = synchronized(pendingRequests) {
+                if (destroyed) {
+                    return
+                }
+                qcrilMsgService = qcrilMsgTunnel
+                flushingRequests.addAll(pendingRequests)
+                pendingRequests.toList().also { pendingRequests.clear() }
+            }
+            if (queued.isNotEmpty()) {
+                Log.d(TAG, "Sending ${queued.size} queued requests")
+            }
+            for (request in queued) {
+                handler.removeCallbacks(request.timeout)
+                flushExecutor.execute {
+                    request.future.complete(
+                        send(qcrilMsgTunnel, request.phoneId, request.oemReq, request.oemResp)
+                    )
+                    synchronized(pendingRequests) { flushingRequests.remove(request) }
+                }
+            }
+            onConnected()
         }
 
         override fun onServiceDisconnected(name: ComponentName) {
             Log.e(TAG, "The connection to the service got disconnected unexpectedly!")
             qcrilMsgService = null
         }
+
+        override fun onBindingDied(name: ComponentName) {
+            Log.e(TAG, "QcrilMsgTunnel binding died, rebinding")
+            qcrilMsgService = null
+            if (synchronized(pendingRequests) { destroyed }) {
+                return
+            }
+            context.unbindService(this)
+            bindToQcrilMsgTunnelService()
+        }
     }
     private val qcrilMsgServiceDeathRecipient = IBinder.DeathRecipient {
         Log.e(TAG, "QcrilMsgService Died")
-        context.unbindService(qcrilMsgTunnelConnection)
-        handler.postDelayed({ bindToQcrilMsgTunnelService() }, 4000)
+        // The binding is kept, it reconnects as soon as the service is restarted
+        qcrilMsgService = null
+    }
+
+    private inner class PendingRequest(
+        val phoneId: Int, val oemReq: ByteArray?, val oemResp: ByteArray?
+    ) {
+        val future = CompletableFuture<Int>()
+        val timeout = Runnable {
+            val expired = synchronized(pendingRequests) { pendingRequests.remove(this) }
+            if (expired) {
+                Log.e(TAG, "QcrilMsgTunnel Service not connected, request timed out")
+                future.complete(-1)
+            }
+        }
     }
 
     init {
@@ -53,30 +114,87 @@ class QcrilMsgTunnelConnector(private val context: Context) {
         context.bindService(intent, qcrilMsgTunnelConnection, Context.BIND_AUTO_CREATE)
     }
 
+    /**
+     * Unbind from the tunnel service and fail every request not sent yet. Call on the main
+     * thread, the connector can't be used afterwards.
+     */
+    fun destroy() {
+        val unsent = synchronized(pendingRequests) {
+            destroyed = true
+            qcrilMsgService = null
+            (pendingRequests + flushingRequests).also {
+                pendingRequests.clear()
+                flushingRequests.clear()
+            }
+        }
+        context.unbindService(qcrilMsgTunnelConnection)
+        flushExecutor.shutdownNow()
+        for (request in unsent) {
+            handler.removeCallbacks(request.timeout)
+            // No-op for a request the flush thread was already sending
+            request.future.complete(-1)
+        }
+    }
+
+    /**
+     * Send an OEM RIL request, holding it until the tunnel service connects if needed. The
+     * returned future completes with the request's result, or -1 if it failed, the service
+     * did not connect within timeoutMs or the connector was destroyed.
+     */
+    fun sendOemRilRequestRawForPhone(
+        phoneId: Int, oemReq: ByteArray?, oemResp: ByteArray?,
+        timeoutMs: Long = REQUEST_TIMEOUT_MS
+    ): CompletableFuture<Int> {
+        val service = synchronized(pendingRequests) {
+            if (destroyed) {
+                return CompletableFuture.completedFuture(-1)
+            }
+            qcrilMsgService ?: run {
+                val request = PendingRequest(phoneId, oemReq, oemResp)
+                pendingRequests.addLast(request)
+                handler.postDelayed(request.timeout, timeoutMs)
+                Log.d(TAG, "QcrilMsgTunnel Service not connected, queued request")
+                return request.future
+            }
+        }
+        return CompletableFuture.completedFuture(send(service, phoneId, oemReq, oemResp))
+    }
+
+    /**
+     * Blocking variant of [sendOemRilRequestRawForPhone], not to be called on the main thread
+     * as that is where the service connects.
+     */
     fun invokeOemRilRequestRawForPhone(phoneId: Int, oemReq: ByteArray?, oemResp: ByteArray?): Int {
-        return qcrilMsgService?.let {
+        return try {
+            sendOemRilRequestRawForPhone(phoneId, oemReq, oemResp).get()
+        } catch (e: InterruptedException) {
+            -1
+        } catch (e: ExecutionException) {
+            -1
+        }
+    }
+
+    private fun send(
+        service: IQcrilMsgTunnel, phoneId: Int, oemReq: ByteArray?, oemResp: ByteArray?
+    ): Int {
+        Log.d(
+            TAG, "invokeOemRilRequestRawForSubscriber: phoneId = $phoneId oemReq = ${
+                IccUtils.bytesToHexString(
+                    oemReq
+                )
+            }"
+        )
+        val rspData = oemResp ?: ByteArray(1)
+        return try {
+            val ret = service.sendOemRilRequestRaw(oemReq, rspData, phoneId)
             Log.d(
-                TAG, "invokeOemRilRequestRawForSubscriber: phoneId = $phoneId oemReq = ${
-                    IccUtils.bytesToHexString(
-                        oemReq
-                    )
+                TAG, "invokeOemRilRequestRawForSubscriber: phoneId = $phoneId oemResp = ${
+                    IccUtils.bytesToHexString(rspData)
                 }"
             )
-            val rspData = oemResp ?: ByteArray(1)
-            try {
-                val ret = it.sendOemRilRequestRaw(oemReq, rspData, phoneId)
-                Log.d(
-                    TAG, "invokeOemRilRequestRawForSubscriber: phoneId = $phoneId oemResp = ${
-                        IccUtils.bytesToHexString(rspData)
-                    }"
-                )
-                ret
-            } catch (e: RemoteException) {
-                Log.e(TAG, "sendOemRilRequestRaw: Runtime Exception")
-                -1
-            }
-        } ?: run {
-            Log.e(TAG, "QcrilMsgTunnel Service not connected")
+            ret
+        } catch (e: RemoteException) {
+            Log.e(TAG, "sendOemRilRequestRaw: Runtime Exception")
             -1
         }
     }
@@ -157,5 +275,7 @@ class QcrilMsgTunnelConnector(private val context: Context) {
         private const val QCRIL_MSG_TUNNEL_PACKAGE_NAME = "com.qualcomm.qcrilmsgtunnel"
         private const val QCRIL_MSG_TUNNEL_SERVICE_NAME =
             "com.qualcomm.qcrilmsgtunnel.QcrilMsgTunnelService"
+
+        private const val REQUEST_TIMEOUT_MS = 10000L
     }
 }